@@ -0,0 +1,213 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package fit;
+
+import java.util.Random;
+
+/**
+ * RANSAC for a 2-dimensional line (y = m*x + n) that works directly on two double arrays. The inliers are stored
+ * in a reusable boolean mask, no objects are created per hypothesis. Like mpicbg's AbstractModel.ransac every
+ * hypothesis is refit to its inliers by least squares until the inliers stop growing. The random generator is seeded, so the result
+ * is the same in every run. Iterations stop early once enough hypotheses were tested to find the best consensus
+ * set with 99% probability.
+ * 
+ * @author preibischs
+ *
+ */
+public class LineRansac 
+{
+	final public static long defaultSeed = 69997;
+	
+	// probability to draw at least one outlier-free sample
+	final public static double confidence = 0.99;
+	
+	final Random rnd;
+	
+	boolean[] inliers = new boolean[ 0 ];
+	boolean[] tmpInliers = new boolean[ 0 ];
+	int numInliers = 0;
+	
+	double m, n;
+	
+	public LineRansac() { this( defaultSeed ); }
+	
+	public LineRansac( final long seed )
+	{
+		this.rnd = new Random( seed );
+	}
+	
+	public double getM() { return m; }
+	public double getN() { return n; }
+	
+	/**
+	 * @return - the inliers of the last call to {@link #ransac(double[], double[], int, int, double, double)}, only the first numPoints entries are valid
+	 */
+	public boolean[] getInliers() { return inliers; }
+	public int getNumInliers() { return numInliers; }
+	
+	/**
+	 * Finds the line supported by most points.
+	 * 
+	 * @param x - x of all points
+	 * @param y - y of all points
+	 * @param numPoints - how many points to use
+	 * @param iterations - the maximal number of hypotheses
+	 * @param epsilon - maximal distance of an inlier to the line
+	 * @param minInlierRatio - the ratio of inliers that has to be exceeded
+	 * @return - the number of inliers, 0 if no line was found
+	 */
+	public int ransac( final double[] x, final double[] y, final int numPoints, final int iterations, final double epsilon, final double minInlierRatio )
+	{
+		if ( inliers.length < numPoints )
+		{
+			inliers = new boolean[ numPoints ];
+			tmpInliers = new boolean[ numPoints ];
+		}
+		
+		numInliers = 0;
+		
+		if ( numPoints < 2 )
+			return 0;
+		
+		// the refits change m and n, they are only replaced if a line was found
+		double bestM = m, bestN = n;
+		int maxIterations = iterations;
+		
+		for ( int i = 0; i < maxIterations; ++i )
+		{
+			// two different points
+			final int a = rnd.nextInt( numPoints );
+			int b = rnd.nextInt( numPoints - 1 );
+			
+			if ( b >= a )
+				++b;
+			
+			if ( x[ a ] == x[ b ] )
+				continue;
+			
+			double hm = ( y[ b ] - y[ a ] ) / ( x[ b ] - x[ a ] );
+			double hn = y[ a ] - hm * x[ a ];
+			
+			int count = test( x, y, numPoints, hm, hn, epsilon, tmpInliers );
+			
+			// refit the line to its inliers until the set of inliers stops growing, same as mpicbg's AbstractModel.ransac
+			int fitted = 0;
+			
+			while ( count > fitted && (double)count / numPoints > minInlierRatio )
+			{
+				fitted = count;
+				
+				if ( !fit( x, y, numPoints, tmpInliers ) )
+					break;
+				
+				hm = m;
+				hn = n;
+				count = test( x, y, numPoints, hm, hn, epsilon, tmpInliers );
+			}
+			
+			if ( count > numInliers && (double)count / numPoints > minInlierRatio )
+			{
+				final boolean[] tmp = inliers;
+				inliers = tmpInliers;
+				tmpInliers = tmp;
+				
+				numInliers = count;
+				bestM = hm;
+				bestN = hn;
+				
+				if ( count == numPoints )
+					break;
+				
+				// the number of iterations necessary to draw two inliers with the given confidence
+				final double w = (double)count / numPoints;
+				final double necessary = Math.ceil( Math.log( 1 - confidence ) / Math.log( 1 - w * w ) );
+				
+				maxIterations = (int)Math.min( iterations, necessary );
+			}
+		}
+		
+		m = bestM;
+		n = bestN;
+		
+		return numInliers;
+	}
+	
+	/**
+	 * Marks all points whose distance to the line is below epsilon.
+	 * 
+	 * @return - the number of inliers
+	 */
+	protected static int test( final double[] x, final double[] y, final int numPoints, final double m, final double n, final double epsilon, final boolean[] mask )
+	{
+		final double norm = Math.sqrt( m*m + 1 );
+		
+		int count = 0;
+		
+		for ( int j = 0; j < numPoints; ++j )
+		{
+			final boolean inlier = Math.abs( y[ j ] - m * x[ j ] - n ) / norm < epsilon;
+			mask[ j ] = inlier;
+			
+			if ( inlier )
+				++count;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Least-squares fit of the line to the masked points, same as {@link Line#fitFunction(java.util.Collection)}.
+	 * 
+	 * @return - false if less than two points are masked
+	 */
+	public boolean fit( final double[] x, final double[] y, final int numPoints, final boolean[] mask )
+	{
+		final double[] delta = new double[ 4 ];
+		final double[] tetha = new double[ 2 ];
+		
+		int count = 0;
+		
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			if ( !mask[ i ] )
+				continue;
+			
+			delta[ 0 ] += x[ i ] * x[ i ];
+			delta[ 1 ] += x[ i ];
+			delta[ 3 ] += 1;
+			
+			tetha[ 0 ] += x[ i ] * y[ i ];
+			tetha[ 1 ] += y[ i ];
+			
+			++count;
+		}
+		
+		if ( count < 2 )
+			return false;
+		
+		delta[ 2 ] = delta[ 1 ];
+		
+		MatrixFunctions.invert2x2Matrix( delta );
+		
+		this.m = delta[ 0 ] * tetha[ 0 ] + delta[ 1 ] * tetha[ 1 ];
+		this.n = delta[ 2 ] * tetha[ 0 ] + delta[ 3 ] * tetha[ 1 ];
+		
+		return true;
+	}
+}
@@ -31,28 +31,30 @@ import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.type.numeric.real.FloatType;
 
 /**
- * Class to extract the 9 planes from one acquired image.
+ * Class to extract the planes (tiles of the grating) from one acquired image.
  * 
  * @author preibischs
  *
  */
 public class ExtractPlane 
 {
-	public static Image< FloatType > extract( final Image< FloatType > stack, final int index )
+	/**
+	 * @param stack - the acquired mosaic (2d or 3d)
+	 * @param index - which tile
+	 * @param grating - how the mosaic is split into tiles
+	 * @return - the stack of the tile
+	 */
+	public static Image< FloatType > extract( final Image< FloatType > stack, final int index, final GratingGeometry grating )
 	{
-		return extract( stack, index % 3, index / 3 );
-	}
-	
-	public static Image< FloatType > extract( final Image< FloatType > stack, final int x, final int y )
-	{
-		IJ.log( "Extracting tile (" + x + ", " + y + ")" );
+		IJ.log( "Extracting tile " + index + " (" + grating.getColumn( index ) + ", " + grating.getRow( index ) + ")" );
 		final int[] dimensions = stack.getDimensions();
+		final int[] roi = grating.getRoi( index, dimensions[ 0 ], dimensions[ 1 ] );
 		
-		dimensions[ 0 ] /= 3;
-		dimensions[ 1 ] /= 3;
+		dimensions[ 0 ] = roi[ 2 ];
+		dimensions[ 1 ] = roi[ 3 ];
 		
-		final int offsetX = x * dimensions[ 0 ];
-		final int offsetY = y * dimensions[ 1 ];
+		final int offsetX = roi[ 0 ];
+		final int offsetY = roi[ 1 ];
 
 		//TODO:REMOVE
 		//dimensions[ 0 ] = 190;
@@ -0,0 +1,286 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * Binary, versioned file format for intermediate results (entropy profiles, extracted piezo stacks). The file
+ * consists of a header (magic number, version, dimensions, hash of the parameters that created the data and
+ * a checksum of the data) followed by the raw little-endian floats. Reading is done through memory-mapping.
+ *
+ * A cache file whose parameter hash does not match the current parameters is considered stale and not returned.
+ *
+ * @author preibischs
+ *
+ */
+public class FloatCacheFile
+{
+	final public static int MAGIC = 0x4D464D43; // "MFMC"
+	final public static int VERSION = 1;
+
+	// map and write at most that many bytes at once
+	final protected static int chunkSize = 64 * 1024 * 1024;
+
+	final int[] dimensions;
+	final float[] data;
+
+	public FloatCacheFile( final int[] dimensions, final float[] data )
+	{
+		this.dimensions = dimensions;
+		this.data = data;
+	}
+
+	public int[] getDimensions() { return dimensions; }
+	public float[] getData() { return data; }
+
+	/**
+	 * Computes the hash of a set of parameters, e.g. hash( sigma, bins ).
+	 *
+	 * @param parameters - the parameters, arrays are expanded
+	 * @return - the 64-bit hash
+	 */
+	public static long hash( final Object... parameters )
+	{
+		final StringBuilder s = new StringBuilder();
+
+		for ( final Object p : parameters )
+		{
+			if ( p instanceof double[] )
+				s.append( Arrays.toString( (double[])p ) );
+			else if ( p instanceof float[] )
+				s.append( Arrays.toString( (float[])p ) );
+			else if ( p instanceof int[] )
+				s.append( Arrays.toString( (int[])p ) );
+			else
+				s.append( String.valueOf( p ) );
+
+			s.append( '|' );
+		}
+
+		long hash = 0xcbf29ce484222325L;
+
+		for ( int i = 0; i < s.length(); ++i )
+		{
+			hash ^= s.charAt( i );
+			hash *= 0x100000001b3L;
+		}
+
+		return hash;
+	}
+
+	/**
+	 * FNV-1a hash over the bits of the floats
+	 */
+	public static long checksum( final float[] data )
+	{
+		long hash = 0xcbf29ce484222325L;
+
+		for ( final float v : data )
+		{
+			hash ^= Float.floatToRawIntBits( v );
+			hash *= 0x100000001b3L;
+		}
+
+		return hash;
+	}
+
+	protected static int headerSize( final int numDimensions )
+	{
+		// magic, version, numDimensions, dimensions, parameter hash, checksum
+		return 4 + 4 + 4 + numDimensions * 4 + 8 + 8;
+	}
+
+	/**
+	 * Writes the data into a cache file.
+	 *
+	 * @param file - the file
+	 * @param dimensions - the dimensions of the data
+	 * @param data - the data, size must match the dimensions
+	 * @param parameterHash - the hash of the parameters used to compute the data, see {@link #hash(Object...)}
+	 * @throws IOException
+	 */
+	public static void write( final File file, final int[] dimensions, final float[] data, final long parameterHash ) throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate( headerSize( dimensions.length ) );
+		header.order( ByteOrder.LITTLE_ENDIAN );
+
+		header.putInt( MAGIC );
+		header.putInt( VERSION );
+		header.putInt( dimensions.length );
+		for ( final int d : dimensions )
+			header.putInt( d );
+		header.putLong( parameterHash );
+		header.putLong( checksum( data ) );
+		header.flip();
+
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+
+		try
+		{
+			raf.setLength( 0 );
+
+			final FileChannel channel = raf.getChannel();
+
+			while ( header.hasRemaining() )
+				channel.write( header );
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect( Math.min( chunkSize, Math.max( 4, data.length * 4 ) ) );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+			final FloatBuffer floatBuffer = buffer.asFloatBuffer();
+
+			int written = 0;
+
+			while ( written < data.length )
+			{
+				final int n = Math.min( floatBuffer.capacity(), data.length - written );
+
+				floatBuffer.clear();
+				floatBuffer.put( data, written, n );
+
+				buffer.clear();
+				buffer.limit( n * 4 );
+
+				while ( buffer.hasRemaining() )
+					channel.write( buffer );
+
+				written += n;
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a cache file.
+	 *
+	 * @param file - the file
+	 * @param parameterHash - the hash of the current parameters, see {@link #hash(Object...)}
+	 * @return - the content or null if the file does not exist, is stale (parameters changed), has a different version or is corrupt
+	 * @throws IOException
+	 */
+	public static FloatCacheFile read( final File file, final long parameterHash ) throws IOException
+	{
+		if ( !file.exists() )
+			return null;
+
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final long length = channel.size();
+
+			if ( length < headerSize( 0 ) )
+			{
+				System.out.println( "Cache file '" + file + "' is corrupt, ignoring it." );
+				return null;
+			}
+
+			final MappedByteBuffer start = channel.map( MapMode.READ_ONLY, 0, Math.min( length, 4 + 4 + 4 + 4 * 16 + 8 + 8 ) );
+			start.order( ByteOrder.LITTLE_ENDIAN );
+
+			if ( start.getInt() != MAGIC )
+			{
+				System.out.println( "Cache file '" + file + "' has an unknown format, ignoring it." );
+				return null;
+			}
+
+			final int version = start.getInt();
+
+			if ( version != VERSION )
+			{
+				System.out.println( "Cache file '" + file + "' has version " + version + " (current " + VERSION + "), ignoring it." );
+				return null;
+			}
+
+			final int numDimensions = start.getInt();
+
+			if ( numDimensions < 0 || numDimensions > 16 || length < headerSize( numDimensions ) )
+			{
+				System.out.println( "Cache file '" + file + "' is corrupt, ignoring it." );
+				return null;
+			}
+
+			final int[] dimensions = new int[ numDimensions ];
+			long numElements = 1;
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				dimensions[ d ] = start.getInt();
+				numElements *= dimensions[ d ];
+			}
+
+			final long hash = start.getLong();
+			final long checksum = start.getLong();
+
+			if ( hash != parameterHash )
+			{
+				System.out.println( "Cache file '" + file + "' was computed with different parameters, ignoring it." );
+				return null;
+			}
+
+			if ( numElements > Integer.MAX_VALUE || length != headerSize( numDimensions ) + numElements * 4 )
+			{
+				System.out.println( "Cache file '" + file + "' is corrupt, ignoring it." );
+				return null;
+			}
+
+			final float[] data = new float[ (int)numElements ];
+
+			long position = headerSize( numDimensions );
+			int read = 0;
+
+			while ( read < data.length )
+			{
+				final int n = Math.min( chunkSize / 4, data.length - read );
+
+				final MappedByteBuffer buffer = channel.map( MapMode.READ_ONLY, position, n * 4L );
+				buffer.order( ByteOrder.LITTLE_ENDIAN );
+				buffer.asFloatBuffer().get( data, read, n );
+
+				position += n * 4L;
+				read += n;
+			}
+
+			if ( checksum( data ) != checksum )
+			{
+				System.out.println( "Cache file '" + file + "' has a wrong checksum, ignoring it." );
+				return null;
+			}
+
+			return new FloatCacheFile( dimensions, data );
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
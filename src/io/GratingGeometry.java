@@ -0,0 +1,143 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package io;
+
+/**
+ * Describes how the MFM grating splits the acquired mosaic into tiles (planes): the number of rows and columns and
+ * for each tile the region of the mosaic it occupies. By default the mosaic is divided into a regular grid of equal
+ * tiles; individual regions can be set explicitly if the optics do not produce a regular grid. A crop removes a border
+ * of the same width from every tile (e.g. the dark gaps between the tiles).
+ * 
+ * Tiles are numbered row by row, tile = row * columns + column. All tiles have the same size.
+ * 
+ * @author preibischs
+ *
+ */
+public class GratingGeometry 
+{
+	final int rows, columns;
+	
+	// explicit regions { x, y, width, height } or null for the regular grid
+	final int[][] rois;
+	int crop = 0;
+	
+	/**
+	 * @param rows - number of tile rows of the grating
+	 * @param columns - number of tile columns of the grating
+	 */
+	public GratingGeometry( final int rows, final int columns )
+	{
+		if ( rows < 1 || columns < 1 )
+			throw new IllegalArgumentException( "A grating needs at least one row and column: " + rows + "x" + columns );
+		
+		this.rows = rows;
+		this.columns = columns;
+		this.rois = new int[ rows * columns ][];
+	}
+	
+	public int getRows() { return rows; }
+	public int getColumns() { return columns; }
+	public int getNumTiles() { return rows * columns; }
+	public int getRow( final int tile ) { return tile / columns; }
+	public int getColumn( final int tile ) { return tile % columns; }
+	
+	/**
+	 * @return - the tile in the center of the grating, it is the reference for the alignment
+	 */
+	public int getCenterTile() { return ( rows / 2 ) * columns + columns / 2; }
+	
+	public int getCrop() { return crop; }
+	
+	/**
+	 * @param crop - how many pixels to remove on every side of every tile
+	 */
+	public void setCrop( final int crop ) { this.crop = crop; }
+	
+	/**
+	 * Sets the region of one tile in the mosaic explicitly, all tiles must have the same size. Tiles without an explicit
+	 * region use the regular grid.
+	 */
+	public void setRoi( final int tile, final int x, final int y, final int width, final int height )
+	{
+		rois[ tile ] = new int[]{ x, y, width, height };
+	}
+	
+	/**
+	 * @param tile - which tile (0...numTiles-1)
+	 * @param mosaicWidth - width of the acquired mosaic
+	 * @param mosaicHeight - height of the acquired mosaic
+	 * @return - the region of the tile in the mosaic { x, y, width, height }, after cropping
+	 */
+	public int[] getRoi( final int tile, final int mosaicWidth, final int mosaicHeight )
+	{
+		final int[] roi;
+		
+		if ( rois[ tile ] != null )
+		{
+			roi = rois[ tile ].clone();
+		}
+		else
+		{
+			final int width = mosaicWidth / columns;
+			final int height = mosaicHeight / rows;
+			
+			roi = new int[]{ getColumn( tile ) * width, getRow( tile ) * height, width, height };
+		}
+		
+		roi[ 0 ] += crop;
+		roi[ 1 ] += crop;
+		roi[ 2 ] -= 2 * crop;
+		roi[ 3 ] -= 2 * crop;
+		
+		if ( roi[ 2 ] <= 0 || roi[ 3 ] <= 0 || roi[ 0 ] < 0 || roi[ 1 ] < 0 || roi[ 0 ] + roi[ 2 ] > mosaicWidth || roi[ 1 ] + roi[ 3 ] > mosaicHeight )
+			throw new IllegalArgumentException( "Tile " + tile + " [" + roi[ 0 ] + ", " + roi[ 1 ] + ", " + roi[ 2 ] + "x" + roi[ 3 ] + "] is not inside the mosaic of size " + mosaicWidth + "x" + mosaicHeight );
+		
+		return roi;
+	}
+	
+	/**
+	 * @return - the size of every tile { width, height } for a mosaic of that size
+	 */
+	public int[] getTileSize( final int mosaicWidth, final int mosaicHeight )
+	{
+		final int[] roi = getRoi( 0, mosaicWidth, mosaicHeight );
+		
+		for ( int tile = 1; tile < getNumTiles(); ++tile )
+		{
+			final int[] other = getRoi( tile, mosaicWidth, mosaicHeight );
+			
+			if ( other[ 2 ] != roi[ 2 ] || other[ 3 ] != roi[ 3 ] )
+				throw new IllegalArgumentException( "All tiles must have the same size, tile 0 is " + roi[ 2 ] + "x" + roi[ 3 ] + ", tile " + tile + " is " + other[ 2 ] + "x" + other[ 3 ] );
+		}
+		
+		return new int[]{ roi[ 2 ], roi[ 3 ] };
+	}
+	
+	@Override
+	public String toString()
+	{
+		final StringBuilder s = new StringBuilder( rows + "x" + columns + "_crop=" + crop );
+		
+		for ( int tile = 0; tile < rois.length; ++tile )
+			if ( rois[ tile ] != null )
+				s.append( "_" + tile + "=" + rois[ tile ][ 0 ] + "," + rois[ tile ][ 1 ] + "," + rois[ tile ][ 2 ] + "," + rois[ tile ][ 3 ] );
+		
+		return s.toString();
+	}
+}
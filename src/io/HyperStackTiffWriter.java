@@ -0,0 +1,267 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes a 32-bit ImageJ hyperstack (xyczt) to a TIFF file slice by slice, so that the whole stack never has to be
+ * in memory. The file layout is the same ImageJ uses: header, the first IFD with the hyperstack description, all
+ * pixel data contiguous in xyczt-order and the remaining IFDs at the end of the file.
+ *
+ * Slices have to be added in xyczt-order, i.e. channel changes fastest and timepoint slowest.
+ *
+ * @author preibischs
+ *
+ */
+public class HyperStackTiffWriter
+{
+	final static int NEW_SUBFILE_TYPE = 254;
+	final static int IMAGE_WIDTH = 256;
+	final static int IMAGE_LENGTH = 257;
+	final static int BITS_PER_SAMPLE = 258;
+	final static int PHOTO_INTERP = 262;
+	final static int IMAGE_DESCRIPTION = 270;
+	final static int STRIP_OFFSETS = 273;
+	final static int SAMPLES_PER_PIXEL = 277;
+	final static int ROWS_PER_STRIP = 278;
+	final static int STRIP_BYTE_COUNT = 279;
+	final static int SAMPLE_FORMAT = 339;
+
+	final static int SHORT = 3;
+	final static int LONG = 4;
+	final static int ASCII = 2;
+
+	// the maximal file size that can be addressed by the offsets in the IFDs
+	final static long maxOffset = 0xffffffffL;
+
+	final File file;
+	final int width, height, numChannels, numSlices, numFrames, numImages;
+	final long imageSize, imageStart;
+
+	final OutputStream out;
+	final ByteBuffer buffer;
+
+	int written = 0;
+
+	/**
+	 * @param file - the output file
+	 * @param width - width of every slice
+	 * @param height - height of every slice
+	 * @param numChannels - number of channels (c)
+	 * @param numSlices - number of z-slices (z)
+	 * @param numFrames - number of timepoints (t)
+	 */
+	public HyperStackTiffWriter( final File file, final int width, final int height, final int numChannels, final int numSlices, final int numFrames ) throws IOException
+	{
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.numChannels = numChannels;
+		this.numSlices = numSlices;
+		this.numFrames = numFrames;
+		this.numImages = numChannels * numSlices * numFrames;
+		this.imageSize = (long)width * (long)height * 4;
+
+		final byte[] description = getDescription();
+		final int firstIFDSize = 2 + 11 * 12 + 4;
+
+		this.imageStart = 8 + firstIFDSize + description.length;
+
+		this.buffer = ByteBuffer.allocate( (int)imageSize );
+		this.buffer.order( ByteOrder.BIG_ENDIAN );
+
+		this.out = new BufferedOutputStream( new FileOutputStream( file ), 1024 * 1024 );
+
+		// header, big endian like ImageJ
+		final ByteBuffer header = ByteBuffer.allocate( (int)imageStart );
+		header.order( ByteOrder.BIG_ENDIAN );
+
+		header.put( (byte)'M' );
+		header.put( (byte)'M' );
+		header.putShort( (short)42 );
+		header.putInt( 8 );
+
+		// the first IFD, the pointer to the next IFD is set in close()
+		writeIFD( header, imageStart, 8 + firstIFDSize, description.length, 0 );
+		header.put( description );
+
+		out.write( header.array() );
+	}
+
+	protected byte[] getDescription()
+	{
+		final StringBuilder s = new StringBuilder();
+
+		s.append( "ImageJ=1.46r\n" );
+		s.append( "images=" + numImages + "\n" );
+
+		if ( numChannels > 1 )
+			s.append( "channels=" + numChannels + "\n" );
+		if ( numSlices > 1 )
+			s.append( "slices=" + numSlices + "\n" );
+		if ( numFrames > 1 )
+			s.append( "frames=" + numFrames + "\n" );
+
+		s.append( "hyperstack=true\n" );
+
+		if ( numChannels > 1 )
+			s.append( "mode=composite\n" );
+
+		s.append( "loop=false\n" );
+		s.append( (char)0 );
+
+		final byte[] bytes = new byte[ s.length() ];
+
+		for ( int i = 0; i < bytes.length; ++i )
+			bytes[ i ] = (byte)s.charAt( i );
+
+		return bytes;
+	}
+
+	protected void writeIFD( final ByteBuffer b, final long stripOffset, final long descriptionOffset, final int descriptionLength, final long nextIFD )
+	{
+		final boolean hasDescription = descriptionLength > 0;
+
+		b.putShort( (short)( hasDescription ? 11 : 10 ) );
+
+		writeEntry( b, NEW_SUBFILE_TYPE, LONG, 1, 0 );
+		writeEntry( b, IMAGE_WIDTH, LONG, 1, width );
+		writeEntry( b, IMAGE_LENGTH, LONG, 1, height );
+		writeShortEntry( b, BITS_PER_SAMPLE, 32 );
+		writeShortEntry( b, PHOTO_INTERP, 1 );
+
+		if ( hasDescription )
+			writeEntry( b, IMAGE_DESCRIPTION, ASCII, descriptionLength, descriptionOffset );
+
+		writeEntry( b, STRIP_OFFSETS, LONG, 1, stripOffset );
+		writeShortEntry( b, SAMPLES_PER_PIXEL, 1 );
+		writeEntry( b, ROWS_PER_STRIP, LONG, 1, height );
+		writeEntry( b, STRIP_BYTE_COUNT, LONG, 1, imageSize );
+		writeShortEntry( b, SAMPLE_FORMAT, 3 ); // IEEE floating point
+
+		b.putInt( (int)nextIFD );
+	}
+
+	protected static void writeEntry( final ByteBuffer b, final int tag, final int type, final int count, final long value )
+	{
+		b.putShort( (short)tag );
+		b.putShort( (short)type );
+		b.putInt( count );
+		b.putInt( (int)value );
+	}
+
+	protected static void writeShortEntry( final ByteBuffer b, final int tag, final int value )
+	{
+		b.putShort( (short)tag );
+		b.putShort( (short)SHORT );
+		b.putInt( 1 );
+		b.putShort( (short)value );
+		b.putShort( (short)0 );
+	}
+
+	/**
+	 * Appends the next slice (xyczt-order) to the file.
+	 *
+	 * @param pixels - the pixels of the slice, width*height
+	 */
+	public synchronized void addSlice( final float[] pixels ) throws IOException
+	{
+		if ( written >= numImages )
+			throw new IOException( "All " + numImages + " slices of '" + file + "' are already written." );
+
+		if ( pixels.length != width * height )
+			throw new IOException( "Slice has " + pixels.length + " pixels, expected " + ( width * height ) + "." );
+
+		buffer.clear();
+		buffer.asFloatBuffer().put( pixels );
+
+		out.write( buffer.array() );
+
+		++written;
+	}
+
+	public int getNumImages() { return numImages; }
+	public int getNumWritten() { return written; }
+
+	/**
+	 * Writes the remaining IFDs and closes the file. If not all slices were written (e.g. because of an error) the 
+	 * description of the first IFD does not match the file anymore, it is renamed to '*.incomplete' (or deleted if 
+	 * that fails) so that it cannot be mistaken for a valid hyperstack.
+	 */
+	public synchronized void close() throws IOException
+	{
+		if ( written != numImages )
+		{
+			out.close();
+
+			final File incomplete = new File( file.getAbsolutePath() + ".incomplete" );
+
+			if ( incomplete.exists() )
+				incomplete.delete();
+
+			if ( file.renameTo( incomplete ) )
+				System.out.println( "Only " + written + " of " + numImages + " slices were written to '" + file + "', renamed it to '" + incomplete + "'." );
+			else if ( file.delete() )
+				System.out.println( "Only " + written + " of " + numImages + " slices were written to '" + file + "', deleted it." );
+			else
+				throw new IOException( "Only " + written + " of " + numImages + " slices were written to '" + file + "', could not remove it." );
+
+			return;
+		}
+
+		final long ifdStart = imageStart + written * imageSize;
+		final int ifdSize = 2 + 10 * 12 + 4;
+
+		// if the offsets cannot be addressed anymore, ImageJ reads the file using the description of the first IFD
+		final boolean writeIFDs = written > 1 && ifdStart + ( written - 1 ) * (long)ifdSize < maxOffset;
+
+		if ( writeIFDs )
+		{
+			final ByteBuffer ifds = ByteBuffer.allocate( ( written - 1 ) * ifdSize );
+			ifds.order( ByteOrder.BIG_ENDIAN );
+
+			for ( int i = 1; i < written; ++i )
+			{
+				final long next = i < written - 1 ? ifdStart + i * (long)ifdSize : 0;
+				writeIFD( ifds, imageStart + i * imageSize, 0, 0, next );
+			}
+
+			out.write( ifds.array() );
+		}
+
+		out.close();
+
+		if ( writeIFDs )
+		{
+			// set the pointer from the first IFD to the second one
+			final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+			raf.seek( 8 + 2 + 11 * 12 );
+			raf.writeInt( (int)ifdStart );
+			raf.close();
+		}
+	}
+}
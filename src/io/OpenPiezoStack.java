@@ -41,29 +41,41 @@ import mpicbg.imglib.type.numeric.real.FloatType;
  */
 public class OpenPiezoStack 
 {
+	/**
+	 * @param dir - the directory containing the slices of the piezo stack
+	 * @param tag - the part of the filename that selects the channel
+	 * @return - the sorted names of all files that contain the tag
+	 */
+	public static String[] listFiles( final File dir, final String tag )
+	{
+		final String[] files = dir.list( new FilenameFilter() 
+		{	
+			@Override
+			public boolean accept( final File dir, final String name ) 
+			{
+				final File newFile = new File( dir, name );
+				
+				// ignore directories and hidden files
+				if ( newFile.isHidden() || newFile.isDirectory() )
+					return false;
+				else if ( name.contains( tag ) )
+					return true;
+				else
+					return false;
+			}
+		});
+		
+		Arrays.sort( files );
+		
+		return files;
+	}
+	
 	public static Image< FloatType > openPiezo( final File dir, final String tag ) throws FormatException, IOException
 	{
 		// read many 2d-images if it is a directory
 		if ( dir.isDirectory() )
 		{
-			final String[] files = dir.list( new FilenameFilter() 
-			{	
-				@Override
-				public boolean accept( final File dir, final String name ) 
-				{
-					final File newFile = new File( dir, name );
-					
-					// ignore directories and hidden files
-					if ( newFile.isHidden() || newFile.isDirectory() )
-						return false;
-					else if ( name.contains( tag ) )
-						return true;
-					else
-						return false;
-				}
-			});
-			
-			Arrays.sort( files );
+			final String[] files = listFiles( dir, tag );
 			
 			final int depth = files.length;
 			
@@ -114,4 +126,37 @@ public class OpenPiezoStack
 			return null;
 		}
 	}	
+
+	/**
+	 * Loads the piezo stack and splits it into the tiles of the grating while reading. Each slice file is decoded once and
+	 * its pixels are directly written into the tile stacks, the whole mosaic is never held in memory. The result is 
+	 * identical to {@link #openPiezo(File, String)}, followed by dark count subtraction, horizontal mirroring (optional)
+	 * and {@link ExtractPlane#extract(Image, int, GratingGeometry)} for every tile.
+	 * 
+	 * @param dir - the directory containing the slices
+	 * @param tag - the part of the filename that selects the channel
+	 * @param darkCount - the dark count image that is subtracted (size of the mosaic, cycled in z), can be null
+	 * @param mirror - mirror the mosaic horizontally
+	 * @param grating - how the mosaic is split into tiles
+	 * @return - the tile stacks, indexed like {@link ExtractPlane#extract(Image, int, GratingGeometry)} or null if the data could not be loaded
+	 */
+	public static Image< FloatType >[] openPiezoTiles( final File dir, final String tag, final Image< FloatType > darkCount, final boolean mirror, final GratingGeometry grating ) throws FormatException, IOException
+	{
+		if ( !dir.isDirectory() )
+		{
+			System.out.println( "'" + dir.getAbsolutePath() + "' is no directory." );
+			return null;
+		}
+		
+		try
+		{
+			// no need to cache anything, every slice is read exactly once
+			return new PiezoStack( dir, tag, darkCount, mirror, grating, 0 ).getTiles();
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "--- " + e.getMessage() );
+			return null;
+		}
+	}
 }
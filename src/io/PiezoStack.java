@@ -0,0 +1,312 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package io;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import loci.formats.FormatException;
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.io.ImageOpener;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.util.Util;
+
+/**
+ * Lazy access to a stack of planes acquired by the Piezo stage. Only the sorted list of files is read when the
+ * {@link PiezoStack} is created, the slices are decoded on demand. Decoded slices (with dark counts subtracted and
+ * mirrored if requested) are kept in a least-recently-used cache that is limited to a certain number of bytes.
+ *
+ * Individual tiles can be accessed slice by slice ({@link #extractPlane(int, int, Image)}) or as a full stack
+ * ({@link #getTile(int)}) without loading the whole mosaic.
+ *
+ * @author preibischs
+ *
+ */
+public class PiezoStack
+{
+	final File dir;
+	final String[] files;
+	final boolean mirror;
+
+	final int width, height, slicesPerFile, numSlices;
+	final GratingGeometry grating;
+	final int tileWidth, tileHeight;
+	final int[][] rois;
+
+	final float[] dark;
+	final int darkSlices;
+
+	final ImageFactory< FloatType > factory = new ImageFactory< FloatType>( new FloatType(), new ArrayContainerFactory() );
+
+	// LRU cache of the decoded files
+	final long maxCacheBytes;
+	long cacheBytes = 0;
+	final LinkedHashMap< Integer, float[] > cache = new LinkedHashMap< Integer, float[] >( 16, 0.75f, true );
+
+	// the most recently used file is always kept
+	int currentIndex = -1;
+	float[] current = null;
+
+	/**
+	 * @param dir - the directory containing the slices
+	 * @param tag - the part of the filename that selects the channel
+	 * @param darkCount - the dark count image that is subtracted (size of the mosaic, cycled in z), can be null
+	 * @param mirror - mirror the mosaic horizontally
+	 * @param grating - how the mosaic is split into tiles
+	 * @param maxCacheBytes - how many bytes of decoded slices to keep in memory
+	 */
+	public PiezoStack( final File dir, final String tag, final Image< FloatType > darkCount, final boolean mirror, final GratingGeometry grating, final long maxCacheBytes ) throws FormatException, IOException
+	{
+		if ( !dir.isDirectory() )
+			throw new IOException( "'" + dir.getAbsolutePath() + "' is no directory." );
+
+		this.dir = dir;
+		this.files = OpenPiezoStack.listFiles( dir, tag );
+		this.mirror = mirror;
+		this.grating = grating;
+		this.maxCacheBytes = maxCacheBytes;
+
+		if ( files.length == 0 )
+			throw new IOException( "No files in '" + dir.getAbsolutePath() + "' contain '" + tag + "'." );
+
+		final Image< FloatType > first = new ImageOpener().openImage( new File( dir, files[ 0 ] ).getAbsolutePath(), factory );
+		final int[] dim = first.getDimensions();
+		first.close();
+
+		this.width = dim[ 0 ];
+		this.height = dim[ 1 ];
+		this.slicesPerFile = dim.length > 2 ? dim[ 2 ] : 1;
+		this.numSlices = files.length * slicesPerFile;
+
+		final int[] tileSize = grating.getTileSize( width, height );
+		this.tileWidth = tileSize[ 0 ];
+		this.tileHeight = tileSize[ 1 ];
+		
+		this.rois = new int[ grating.getNumTiles() ][];
+		for ( int t = 0; t < rois.length; ++t )
+			rois[ t ] = grating.getRoi( t, width, height );
+
+		IJ.log( files.length + " files, should all be '" + files[ 0 ] + "' [" + width + "x" + height + "x" + slicesPerFile + " image=Image<FloatType>]" );
+
+		if ( darkCount != null && ( darkCount.getDimension( 0 ) != width || darkCount.getDimension( 1 ) != height ) )
+		{
+			System.out.println( "Dimensionality for dark count subtraction does not match:" );
+			System.out.println( "image:" + Util.printCoordinates( dim ) );
+			System.out.println( "darkcounts:" + Util.printCoordinates( darkCount.getDimensions() ) );
+			System.out.println( "NOT SUBTRACTED darkcount image" );
+
+			this.dark = null;
+			this.darkSlices = 0;
+		}
+		else if ( darkCount != null )
+		{
+			this.dark = getArray( darkCount );
+			this.darkSlices = dark.length / ( width * height );
+
+			System.out.println( "SUBTRACTED darkcount image [" + Util.printCoordinates( darkCount.getDimensions() ) + "]" );
+		}
+		else
+		{
+			this.dark = null;
+			this.darkSlices = 0;
+		}
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+	public int getNumSlices() { return numSlices; }
+	public int getTileWidth() { return tileWidth; }
+	public int getTileHeight() { return tileHeight; }
+	public int getNumTiles() { return rois.length; }
+	public GratingGeometry getGrating() { return grating; }
+	public String[] getFiles() { return files; }
+
+	/**
+	 * Returns the decoded pixels of one file, from the cache if possible.
+	 *
+	 * @param fileIndex - index in the sorted file list
+	 * @return - the pixels of all slices of this file, dark counts subtracted and mirrored
+	 */
+	protected synchronized float[] getFile( final int fileIndex ) throws FormatException, IOException
+	{
+		if ( fileIndex == currentIndex )
+			return current;
+
+		float[] pixels = cache.get( fileIndex );
+
+		if ( pixels == null )
+		{
+			pixels = decode( fileIndex );
+
+			if ( maxCacheBytes > 0 )
+			{
+				cache.put( fileIndex, pixels );
+				cacheBytes += pixels.length * 4L;
+
+				// remove the least recently used ones, but always keep the current one
+				final Iterator< Entry< Integer, float[] > > it = cache.entrySet().iterator();
+
+				while ( cacheBytes > maxCacheBytes && cache.size() > 1 && it.hasNext() )
+				{
+					final Entry< Integer, float[] > entry = it.next();
+
+					if ( entry.getKey() != fileIndex )
+					{
+						cacheBytes -= entry.getValue().length * 4L;
+						it.remove();
+					}
+				}
+			}
+		}
+
+		currentIndex = fileIndex;
+		current = pixels;
+
+		return pixels;
+	}
+
+	protected float[] decode( final int fileIndex ) throws FormatException, IOException
+	{
+		final Image< FloatType > image = new ImageOpener().openImage( new File( dir, files[ fileIndex ] ).getAbsolutePath(), factory );
+
+		if ( image.getDimension( 0 ) != width || image.getDimension( 1 ) != height || ( image.getNumDimensions() > 2 ? image.getDimension( 2 ) : 1 ) != slicesPerFile )
+			throw new IOException( "Dimensions of '" + files[ fileIndex ] + "' are incompatible. Please check file." );
+
+		final float[] raw = getArray( image );
+		final float[] pixels = new float[ raw.length ];
+		final int sliceSize = width * height;
+
+		for ( int s = 0; s < slicesPerFile; ++s )
+		{
+			final int z = fileIndex * slicesPerFile + s;
+			final int sliceOffset = s * sliceSize;
+			final int darkOffset = dark == null ? 0 : ( z % darkSlices ) * sliceSize;
+
+			for ( int y = 0; y < height; ++y )
+			{
+				final int row = sliceOffset + y * width;
+				final int darkRow = darkOffset + y * width;
+
+				for ( int x = 0; x < width; ++x )
+				{
+					// mirroring is applied after the dark count subtraction, so both read from the same location
+					final int xs = mirror ? width - 1 - x : x;
+
+					if ( dark == null )
+						pixels[ row + x ] = raw[ row + xs ];
+					else
+						pixels[ row + x ] = Math.max( 0, raw[ row + xs ] - dark[ darkRow + xs ] );
+				}
+			}
+		}
+
+		image.close();
+
+		return pixels;
+	}
+
+	/**
+	 * Copies one slice of a tile into a 2d-image, same as {@link process.CrossCorrelation#extractPlane(Image, Image, int)}
+	 * on the extracted tile stack.
+	 *
+	 * @param tile - which tile (0...numTiles-1)
+	 * @param z - which slice
+	 * @param plane - the target, must be an {@link Array} image of size tileWidth x tileHeight
+	 */
+	public void extractPlane( final int tile, final int z, final Image< FloatType > plane ) throws FormatException, IOException
+	{
+		copyTile( tile, z, getArray( plane ), 0 );
+	}
+
+	/**
+	 * @param tile - which tile (0...numTiles-1)
+	 * @return - the full stack of one tile, same as {@link ExtractPlane#extract(Image, int, GratingGeometry)} on the whole mosaic
+	 */
+	public Image< FloatType > getTile( final int tile ) throws FormatException, IOException
+	{
+		return getTile( tile, 0, numSlices );
+	}
+
+	/**
+	 * @param tile - which tile (0...numTiles-1)
+	 * @param from - first slice (inclusive)
+	 * @param to - last slice (exclusive)
+	 * @return - the stack of one tile for a range of slices
+	 */
+	public Image< FloatType > getTile( final int tile, final int from, final int to ) throws FormatException, IOException
+	{
+		final Image< FloatType > image = factory.createImage( new int[]{ tileWidth, tileHeight, to - from } );
+		final float[] target = getArray( image );
+
+		for ( int z = from; z < to; ++z )
+			copyTile( tile, z, target, ( z - from ) * tileWidth * tileHeight );
+
+		return image;
+	}
+
+	/**
+	 * Reads all slices once and splits them into all tiles.
+	 *
+	 * @return - the stacks of all tiles
+	 */
+	public Image< FloatType >[] getTiles() throws FormatException, IOException
+	{
+		@SuppressWarnings("unchecked")
+		final Image< FloatType >[] tiles = new Image[ getNumTiles() ];
+		final float[][] targets = new float[ tiles.length ][];
+
+		for ( int t = 0; t < tiles.length; ++t )
+		{
+			tiles[ t ] = factory.createImage( new int[]{ tileWidth, tileHeight, numSlices } );
+			targets[ t ] = getArray( tiles[ t ] );
+		}
+
+		for ( int z = 0; z < numSlices; ++z )
+			for ( int t = 0; t < tiles.length; ++t )
+				copyTile( t, z, targets[ t ], z * tileWidth * tileHeight );
+
+		return tiles;
+	}
+
+	protected void copyTile( final int tile, final int z, final float[] target, final int targetOffset ) throws FormatException, IOException
+	{
+		final float[] pixels = getFile( z / slicesPerFile );
+		final int sliceOffset = ( z % slicesPerFile ) * width * height;
+
+		final int offsetX = rois[ tile ][ 0 ];
+		final int offsetY = rois[ tile ][ 1 ];
+
+		for ( int y = 0; y < tileHeight; ++y )
+			System.arraycopy( pixels, sliceOffset + ( y + offsetY ) * width + offsetX, target, targetOffset + y * tileWidth, tileWidth );
+	}
+
+	protected static float[] getArray( final Image< FloatType > image )
+	{
+		return ((FloatArray)((Array)image.getContainer()).update( null )).getCurrentStorageArray();
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.AbstractAffineModel2D;
+
+/**
+ * Applies a 2d-affine model (e.g. RigidModel2D) to every slice of a stack by bilinear interpolation directly on the
+ * float arrays, with mirrored out-of-bounds. Gives the same result as OverlayFusion.fuseChannel with a 
+ * LinearInterpolatorFactory and an OutOfBoundsStrategyMirrorFactory: target( x, y, z ) = source( model^-1( x, y ), z ).
+ * 
+ * For every row the source coordinates of the first pixel are computed once, along the row they only change by
+ * constant increments. The slices are distributed over several threads.
+ * 
+ * @author preibischs
+ *
+ */
+public class AffineResampler2D 
+{
+	/**
+	 * @return - true if the image and the model are supported, i.e. an {@link Array} container and an {@link AbstractAffineModel2D} 
+	 */
+	public static boolean isSupported( final Image< FloatType > image, final Object model )
+	{
+		return model instanceof AbstractAffineModel2D && image.getContainer() instanceof Array && image.getNumDimensions() >= 2;
+	}
+	
+	/**
+	 * @return - the inverse of the model as { m00, m10, m01, m11, m02, m12 }, i.e. source x = m00 * x + m01 * y + m02
+	 */
+	public static double[] getInverse( final AbstractAffineModel2D< ? > model )
+	{
+		final float[] m = new float[ 6 ];
+		model.toArray( m );
+		
+		final double det = (double)m[ 0 ] * m[ 3 ] - (double)m[ 2 ] * m[ 1 ];
+		
+		if ( det == 0 )
+			throw new IllegalArgumentException( "Model is not invertible: " + model );
+		
+		final double i00 = m[ 3 ] / det;
+		final double i01 = -m[ 2 ] / det;
+		final double i10 = -m[ 1 ] / det;
+		final double i11 = m[ 0 ] / det;
+		
+		return new double[]{ i00, i10, i01, i11, -( i00 * m[ 4 ] + i01 * m[ 5 ] ), -( i10 * m[ 4 ] + i11 * m[ 5 ] ) };
+	}
+	
+	/**
+	 * Resamples all slices of the source into the target (same size).
+	 * 
+	 * @param source - the source stack, {@link Array} container
+	 * @param target - the target stack, {@link Array} container, must not be the source
+	 * @param model - the model that maps the source into the target
+	 * @param numThreads - how many threads to use
+	 */
+	public static void resample( final Image< FloatType > source, final Image< FloatType > target, final AbstractAffineModel2D< ? > model, final int numThreads )
+	{
+		final int width = source.getDimension( 0 );
+		final int height = source.getDimension( 1 );
+		final int sliceSize = width * height;
+		final int numSlices = source.getNumPixels() / sliceSize;
+		
+		if ( target.getNumPixels() != source.getNumPixels() || target.getDimension( 0 ) != width )
+			throw new IllegalArgumentException( "Source and target must have the same size." );
+		
+		final float[] in = Alignment.getArray( source );
+		final float[] out = Alignment.getArray( target );
+		final double[] inverse = getInverse( model );
+		
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numSlices ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int z = ai.getAndIncrement(); z < numSlices; z = ai.getAndIncrement() )
+						resampleSlice( in, z * sliceSize, out, z * sliceSize, width, height, inverse, 1, false );
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+	
+	/**
+	 * Resamples the stack at a sub-pixel z-position and applies the model in xy in one pass (trilinear interpolation),
+	 * the result is the same as first applying the model to all slices and then interpolating linearly in z. In xy
+	 * the out-of-bounds are mirrored, slices outside of the stack are 0.
+	 * 
+	 * @param source - the source stack
+	 * @param width - width of the stack
+	 * @param height - height of the stack
+	 * @param depth - number of slices of the stack
+	 * @param inverse - the inverse model, see {@link #getInverse(AbstractAffineModel2D)}
+	 * @param z - the z-position in the source stack
+	 * @param target - receives the slice, width*height
+	 */
+	public static void resampleSlice( final float[] source, final int width, final int height, final int depth, final double[] inverse, final double z, final float[] target )
+	{
+		final int sliceSize = width * height;
+		final int z0 = (int)Math.floor( z );
+		final float fz = (float)( z - z0 );
+		
+		boolean written = false;
+		
+		if ( z0 >= 0 && z0 < depth && fz < 1 )
+		{
+			resampleSlice( source, z0 * sliceSize, target, 0, width, height, inverse, 1 - fz, false );
+			written = true;
+		}
+		
+		if ( z0 + 1 >= 0 && z0 + 1 < depth && fz > 0 )
+		{
+			resampleSlice( source, ( z0 + 1 ) * sliceSize, target, 0, width, height, inverse, fz, written );
+			written = true;
+		}
+		
+		if ( !written )
+			for ( int i = 0; i < sliceSize; ++i )
+				target[ i ] = 0;
+	}
+	
+	/**
+	 * Resamples one slice: target = ( accumulate ? target : 0 ) + weight * source( inverse( x, y ) ).
+	 * 
+	 * @param source - the source array
+	 * @param sourceOffset - where the slice starts in the source
+	 * @param target - the target array
+	 * @param targetOffset - where the slice starts in the target
+	 * @param width - width of the slice
+	 * @param height - height of the slice
+	 * @param inverse - the inverse model, see {@link #getInverse(AbstractAffineModel2D)}
+	 * @param weight - the weight of the slice
+	 * @param accumulate - add to the target instead of overwriting it
+	 */
+	public static void resampleSlice( final float[] source, final int sourceOffset, final float[] target, final int targetOffset, final int width, final int height, final double[] inverse, final float weight, final boolean accumulate )
+	{
+		final double dxx = inverse[ 0 ];
+		final double dyx = inverse[ 1 ];
+		final double dxy = inverse[ 2 ];
+		final double dyy = inverse[ 3 ];
+		
+		for ( int y = 0; y < height; ++y )
+		{
+			// the source location of the first pixel of the row
+			double sx = dxy * y + inverse[ 4 ];
+			double sy = dyy * y + inverse[ 5 ];
+			
+			int o = targetOffset + y * width;
+			
+			for ( int x = 0; x < width; ++x, ++o, sx += dxx, sy += dyx )
+			{
+				final int x0 = (int)Math.floor( sx );
+				final int y0 = (int)Math.floor( sy );
+				final float fx = (float)( sx - x0 );
+				final float fy = (float)( sy - y0 );
+				
+				final float v00, v10, v01, v11;
+				
+				if ( x0 >= 0 && y0 >= 0 && x0 < width - 1 && y0 < height - 1 )
+				{
+					final int i = sourceOffset + y0 * width + x0;
+					
+					v00 = source[ i ];
+					v10 = source[ i + 1 ];
+					v01 = source[ i + width ];
+					v11 = source[ i + width + 1 ];
+				}
+				else
+				{
+					final int xa = mirror( x0, width );
+					final int xb = mirror( x0 + 1, width );
+					final int ya = sourceOffset + mirror( y0, height ) * width;
+					final int yb = sourceOffset + mirror( y0 + 1, height ) * width;
+					
+					v00 = source[ ya + xa ];
+					v10 = source[ ya + xb ];
+					v01 = source[ yb + xa ];
+					v11 = source[ yb + xb ];
+				}
+				
+				final float top = v00 + fx * ( v10 - v00 );
+				final float bottom = v01 + fx * ( v11 - v01 );
+				final float v = weight * ( top + fy * ( bottom - top ) );
+				
+				if ( accumulate )
+					target[ o ] += v;
+				else
+					target[ o ] = v;
+			}
+		}
+	}
+	
+	/**
+	 * @return - the position mirrored into [0, size-1], the border pixel is not repeated
+	 */
+	public static int mirror( int i, final int size )
+	{
+		if ( size == 1 )
+			return 0;
+		
+		final int period = 2 * size - 2;
+		
+		i = i % period;
+		
+		if ( i < 0 )
+			i += period;
+		
+		return i < size ? i : period - i;
+	}
+}
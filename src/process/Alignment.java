@@ -47,10 +47,15 @@ public class Alignment
 		return align1d( reference, image2, stepSize, minPrecision, null );
 	}
 	
+	/**
+	 * Greedy search for the offset of image2 relative to the reference that minimizes the mean absolute difference,
+	 * the template is interpolated with imglib's Lanczos interpolator. {@link LanczosMatcher1D#alignGreedy(double, double, PrintWriter)}
+	 * is the faster array-based version of the same search, its offsets can differ due to floating point rounding.
+	 */
 	public static float align1d( final float[] reference, final float[] image2, final double stepSize, final double minPrecision, PrintWriter out )
 	{
 		final Image< FloatType > refImg = createImageFromArray( reference, new int[]{ reference.length } );
-		final Image< FloatType > img2 = createImageFromArray( image2, new int[]{ reference.length } );
+		final Image< FloatType > img2 = createImageFromArray( image2, new int[]{ image2.length } );
 	
 		final float[] steps = computeSteps( reference.length, stepSize, minPrecision );
 
@@ -200,6 +205,15 @@ public class Alignment
 		return steps;
 	}
 	
+	/**
+	 * @param image - an {@link Image} backed by an {@link Array} container
+	 * @return - the float[] that stores the pixels of the image
+	 */
+	final public static float[] getArray( final Image< FloatType > image )
+	{
+		return ((FloatArray)((Array)image.getContainer()).update( null )).getCurrentStorageArray();
+	}
+	
 	final public static Image<FloatType> createImageFromArray( final float[] data, final int[] dim )
 	{
 		final FloatAccess access = new FloatArray( data );
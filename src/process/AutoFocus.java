@@ -18,15 +18,20 @@
  */
 package process;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
 import mpicbg.imglib.algorithm.fft.Bandpass;
 import mpicbg.imglib.algorithm.fft.FourierTransform;
+import mpicbg.imglib.cursor.Cursor;
 import mpicbg.imglib.cursor.LocalizableByDimCursor;
-import mpicbg.imglib.cursor.LocalizableCursor;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.display.Display;
 import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorExpWindowingFactory;
 import mpicbg.imglib.type.numeric.complex.ComplexFloatType;
 import mpicbg.imglib.type.numeric.real.FloatType;
 
@@ -40,26 +45,33 @@ public class AutoFocus
 {
 	public static Image< FloatType > focus( final Image< FloatType > image )
 	{
-		// create a plane to extract
-		final int[] size = new int[ 2 ];
-		size[ 0 ] = image.getDimension( 0 );
-		size[ 1 ] = image.getDimension( 1 );
-		
-		final Image< FloatType > plane1 = image.createNewImage( size );
-		
+		return focus( image, 0, 90 );
+	}
+	
+	/**
+	 * @param image - the piezo stack
+	 * @param bandpassBegin - inner radius of the bandpass
+	 * @param bandpassEnd - outer radius of the bandpass
+	 * @return - the bandpassed power spectrum of every slice
+	 */
+	public static Image< FloatType > focus( final Image< FloatType > image, final int bandpassBegin, final int bandpassEnd )
+	{
 		final int numSlices = image.getDimension( 2 );
 		
-		// compute the first fft to get the size
-		final FourierTransform< FloatType, ComplexFloatType > fft1 = new FourierTransform<FloatType, ComplexFloatType>( plane1, new ComplexFloatType() );
-		fft1.process();
+		// the fft of the first slice defines the size of the output, the bandpass mask and the fft plan
+		final Plan plan = new Plan( image, bandpassBegin, bandpassEnd );
 
 		final int size2[] = image.getDimensions();
-		size2[ 0 ] = fft1.getResult().getDimension( 0 );
-		size2[ 1 ] = fft1.getResult().getDimension( 1 );
+		size2[ 0 ] = plan.spectrumWidth;
+		size2[ 1 ] = plan.spectrumHeight;
 		
 		final Image< FloatType > powerSpectrum = image.createNewImage( size2 );
+		final float[] target = Alignment.getArray( powerSpectrum );
+		final int sliceSize = plan.spectrumSize;
 		
-		final AtomicInteger ai = new AtomicInteger(0);
+		System.arraycopy( plan.first, 0, target, 0, sliceSize );
+		
+		final AtomicInteger ai = new AtomicInteger( 1 );
 		final int numThreads = Runtime.getRuntime().availableProcessors();
         final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
         for ( int ithread = 0; ithread < threads.length; ++ithread )
@@ -67,48 +79,425 @@ public class AutoFocus
             {
                 public void run()
                 {
-                	// Thread ID
-                	final int myNumber = ai.getAndIncrement();
-            		final Image< FloatType > plane = image.createNewImage( size );
+                	final Workspace workspace = new Workspace( image, plan );
+
+					for ( int i = ai.getAndIncrement(); i < numSlices; i = ai.getAndIncrement() )
+						workspace.powerSpectrum( i, target, i * sliceSize );
+					
+					workspace.close();
+                }
+		});
 
-					for ( int i = myNumber; i < numSlices; i = i + numThreads )
+        SimpleMultiThreading.startAndJoin( threads );
+		
+		return powerSpectrum;
+	}
+	
+	/**
+	 * Computes the entropy of the bandpassed power spectrum of every slice like {@link #focus(Image, int, int)} followed by
+	 * {@link ComputeEntropy#computeEntropyForSlices(Image, int)}, but without creating the power spectrum stack. The
+	 * spectra are computed twice, the first pass finds the global min and max, the second pass fills the histograms.
+	 * 
+	 * @param image - the piezo stack
+	 * @param bandpassBegin - inner radius of the bandpass
+	 * @param bandpassEnd - outer radius of the bandpass
+	 * @param bins - number of bins of the histogram
+	 * @return - the entropy of every slice
+	 */
+	public static float[] focusEntropies( final Image< FloatType > image, final int bandpassBegin, final int bandpassEnd, final int bins )
+	{
+		final int numSlices = image.getDimension( 2 );
+		final float[] entropies = new float[ numSlices ];
+		
+		// the fft of the first slice defines the size of the spectra, the bandpass mask and the fft plan
+		final Plan plan = new Plan( image, bandpassBegin, bandpassEnd );
+		
+		final int sliceSize = plan.spectrumSize;
+		final float[] spectrum1 = plan.first;
+		
+		// first pass: global min and max
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final float[] mins = new float[ numThreads ];
+		final float[] maxs = new float[ numThreads ];
+		
+		final AtomicInteger ai = new AtomicInteger( 1 );
+		final AtomicInteger threadIndex = new AtomicInteger( 0 );
+        Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+        for ( int ithread = 0; ithread < threads.length; ++ithread )
+            threads[ithread] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                	final int myNumber = threadIndex.getAndIncrement();
+                	final Workspace workspace = new Workspace( image, plan );
+                	final float[] spectrum = new float[ sliceSize ];
+                	
+                	float min = Float.MAX_VALUE;
+                	float max = -Float.MAX_VALUE;
+
+					for ( int i = ai.getAndIncrement(); i < numSlices; i = ai.getAndIncrement() )
 					{
-						CrossCorrelation.extractPlane( image, plane, i );
-												
-						final FourierTransform< FloatType, ComplexFloatType > fft = new FourierTransform<FloatType, ComplexFloatType>( plane, new ComplexFloatType() );
-						//fft.setPreProcessing( PreProcessing.USE_GIVEN_OUTOFBOUNDSSTRATEGY );
-						//fft.setCustomOutOfBoundsStrategy( new OutOfBoundsStrategyValueFactory<FloatType>() );
-						fft.process();
-						Image< ComplexFloatType> fourier = fft.getResult();
-									
-						final Bandpass< ComplexFloatType > bandpass = new Bandpass<ComplexFloatType>( fourier, 0, 90 );
-						bandpass.process();
-						fourier = bandpass.getResult();
-						
-						final Display< ComplexFloatType > display = fourier.getDisplay();
-						final LocalizableByDimCursor< FloatType > randomAccess = powerSpectrum.createLocalizableByDimCursor();
-						final LocalizableCursor< ComplexFloatType > cursor = fourier.createLocalizableCursor();
-						final int[] tmp = new int[ 3 ];
+						workspace.powerSpectrum( i, spectrum, 0 );
 						
-						while ( cursor.hasNext() )
+						for ( final float v : spectrum )
 						{
-							cursor.fwd();
-							cursor.getPosition( tmp );
-							tmp[ 2 ] = i;
-							
-							randomAccess.setPosition( tmp );
-							randomAccess.getType().set( display.get32Bit( cursor.getType() ) );
+							if ( v < min )
+								min = v;
+							if ( v > max )
+								max = v;
 						}
 					}
 					
-					plane.close();
+					mins[ myNumber ] = min;
+					maxs[ myNumber ] = max;
+					
+					workspace.close();
                 }
 		});
 
         SimpleMultiThreading.startAndJoin( threads );
+        
+    	float min = Float.MAX_VALUE;
+    	float max = -Float.MAX_VALUE;
+    	
+		for ( final float v : spectrum1 )
+		{
+			if ( v < min )
+				min = v;
+			if ( v > max )
+				max = v;
+		}
 		
-		return powerSpectrum;
+		for ( int i = 0; i < numThreads; ++i )
+		{
+			min = Math.min( min, mins[ i ] );
+			max = Math.max( max, maxs[ i ] );
+		}
+		
+		final float globalMin = min;
+		final float globalMax = max;
+		
+		// second pass: the histograms
+		entropies[ 0 ] = ComputeEntropy.computeEntropy( spectrum1, 0, sliceSize, bins, globalMin, globalMax );
+		
+		ai.set( 1 );
+        threads = SimpleMultiThreading.newThreads( numThreads );
+        for ( int ithread = 0; ithread < threads.length; ++ithread )
+            threads[ithread] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                	final Workspace workspace = new Workspace( image, plan );
+                	final float[] spectrum = new float[ sliceSize ];
+
+					for ( int i = ai.getAndIncrement(); i < numSlices; i = ai.getAndIncrement() )
+					{
+						workspace.powerSpectrum( i, spectrum, 0 );
+						entropies[ i ] = ComputeEntropy.computeEntropy( spectrum, 0, sliceSize, bins, globalMin, globalMax );
+					}
+					
+					workspace.close();
+                }
+		});
+
+        SimpleMultiThreading.startAndJoin( threads );
+		
+		return entropies;
 	}
 	
+	/**
+	 * Runs the {@link Bandpass} once on an image of ones of the size of the fft.
+	 * 
+	 * @return - true for all pixels that are kept by the bandpass
+	 */
+	public static boolean[] computeBandpassMask( final Image< ComplexFloatType > fourier, final int bandpassBegin, final int bandpassEnd )
+	{
+		final Image< ComplexFloatType > ones = fourier.createNewImage();
+		
+		for ( final ComplexFloatType t : ones )
+			t.setOne();
+		
+		final Bandpass< ComplexFloatType > bandpass = new Bandpass<ComplexFloatType>( ones, bandpassBegin, bandpassEnd );
+		bandpass.process();
+		final Image< ComplexFloatType > result = bandpass.getResult();
+		
+		final boolean[] mask = new boolean[ result.getNumPixels() ];
+		
+		int i = 0;
+		for ( final ComplexFloatType t : result )
+			mask[ i++ ] = t.getRealFloat() != 0 || t.getComplexFloat() != 0;
+		
+		result.close();
+		ones.close();
+		
+		return mask;
+	}
+	
+	/**
+	 * Everything that is the same for all slices of a stack: the size of the fft, the bandpass mask and how the slices 
+	 * are padded before the fft. It is created from the imglib {@link FourierTransform} of the first slice, the padding
+	 * is obtained by probing the same out of bounds strategy once. The precomputed transform is only used if it 
+	 * reproduces the power spectrum of the first slice, otherwise every slice is transformed by imglib.
+	 */
+	protected static class Plan
+	{
+		final int width, height, sliceSize;
+		final int spectrumWidth, spectrumHeight, spectrumSize;
+		final int fftWidth, fftHeight;
+		
+		final boolean[] mask;
+		final float outside;
+		final Display< ComplexFloatType > display;
+		
+		// the power spectrum of the first slice computed by imglib
+		final float[] first;
+		
+		// the padded input of the fft is a[ i ] + b[ i ] * slice[ index[ i ] ]
+		final int[] index;
+		final float[] a, b;
+		
+		final boolean direct;
+		
+		public Plan( final Image< FloatType > image, final int bandpassBegin, final int bandpassEnd )
+		{
+			this.width = image.getDimension( 0 );
+			this.height = image.getDimension( 1 );
+			this.sliceSize = width * height;
+			
+			final Image< FloatType > plane = image.createNewImage( new int[]{ width, height } );
+			final float[] planeArray = Alignment.getArray( plane );
+			System.arraycopy( Alignment.getArray( image ), 0, planeArray, 0, sliceSize );
+			
+			final FourierTransform< FloatType, ComplexFloatType > fft = new FourierTransform<FloatType, ComplexFloatType>( plane, new ComplexFloatType() );
+			fft.process();
+			final Image< ComplexFloatType > fourier = fft.getResult();
+			
+			this.spectrumWidth = fourier.getDimension( 0 );
+			this.spectrumHeight = fourier.getDimension( 1 );
+			this.spectrumSize = spectrumWidth * spectrumHeight;
+			this.fftWidth = ( spectrumWidth - 1 ) * 2;
+			this.fftHeight = spectrumHeight;
+			
+			this.mask = computeBandpassMask( fourier, bandpassBegin, bandpassEnd );
+			this.display = fourier.getDisplay();
+			
+			// the value of all pixels removed by the bandpass
+			final ComplexFloatType zero = new ComplexFloatType();
+			zero.setZero();
+			this.outside = display.get32Bit( zero );
+			
+			this.first = new float[ spectrumSize ];
+			write( fourier, first, 0 );
+			
+			// the padding is linear in the pixel values, probe it with zeros, ones and the pixel indices
+			final int[] offset = fft.getFFTInputOffset();
+			
+			Arrays.fill( planeArray, 0 );
+			this.a = pad( plane, offset );
+			
+			Arrays.fill( planeArray, 1 );
+			this.b = pad( plane, offset );
+			
+			for ( int i = 0; i < sliceSize; ++i )
+				planeArray[ i ] = i + 1;
+			
+			final float[] indices = pad( plane, offset );
+			this.index = new int[ indices.length ];
+			
+			for ( int i = 0; i < index.length; ++i )
+			{
+				b[ i ] -= a[ i ];
+				
+				if ( b[ i ] != 0 )
+					index[ i ] = Math.max( 0, Math.min( sliceSize - 1, Math.round( ( indices[ i ] - a[ i ] ) / b[ i ] ) - 1 ) );
+			}
+			
+			plane.close();
+			
+			// the precomputed transform has to give the same power spectrum as imglib
+			final float[] test = new float[ spectrumSize ];
+			final Workspace workspace = new Workspace( image, this );
+			workspace.powerSpectrumDirect( 0, test, 0 );
+			
+			boolean matches = true;
+			
+			for ( int i = 0; i < spectrumSize && matches; ++i )
+				matches = Math.abs( test[ i ] - first[ i ] ) <= 1e-3f * Math.max( 1, Math.abs( first[ i ] ) );
+			
+			this.direct = matches;
+			
+			if ( !direct )
+				System.out.println( "Precomputed fft does not reproduce the imglib FourierTransform, transforming every slice with imglib." );
+		}
+		
+		/**
+		 * @return - the padded input of the fft as imglib creates it for this plane
+		 */
+		protected float[] pad( final Image< FloatType > plane, final int[] offset )
+		{
+			final float[] padded = new float[ fftWidth * fftHeight ];
+			final LocalizableByDimCursor< FloatType > cursor = plane.createLocalizableByDimCursor( new OutOfBoundsStrategyMirrorExpWindowingFactory<FloatType>( 0.25f ) );
+			final int[] position = new int[ 2 ];
+			
+			for ( int y = 0, i = 0; y < fftHeight; ++y )
+				for ( int x = 0; x < fftWidth; ++x, ++i )
+				{
+					position[ 0 ] = x - offset[ 0 ];
+					position[ 1 ] = y - offset[ 1 ];
+					cursor.setPosition( position );
+					
+					padded[ i ] = cursor.getType().get();
+				}
+			
+			cursor.close();
+			
+			return padded;
+		}
+		
+		/**
+		 * Writes the bandpassed power spectrum of an imglib fft into the target array and releases the fft.
+		 */
+		public void write( final Image< ComplexFloatType > fourier, final float[] target, final int offset )
+		{
+			final Cursor< ComplexFloatType > cursor = fourier.createCursor();
+			
+			int i = 0;
+			
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				
+				if ( mask[ i ] )
+					target[ offset + i ] = display.get32Bit( cursor.getType() );
+				else
+					target[ offset + i ] = outside;
+				
+				++i;
+			}
+			
+			cursor.close();
+			fourier.close();
+		}
+	}
 	
+	/**
+	 * The fft and the buffers one thread needs to compute the power spectra, they are reused for every slice. Every
+	 * slice is padded into a row buffer, transformed row by row into the complex buffer and then column by column, 
+	 * no image is created per slice.
+	 */
+	protected static class Workspace
+	{
+		final Plan plan;
+		final Image< FloatType > image;
+		final float[] source;
+		
+		final FftReal fftX;
+		final FftComplex fftY;
+		
+		final float[] row, rowSpectrum, column, columnSpectrum;
+		
+		// the complex fft of one slice, 2 * spectrumWidth values per row
+		final float[] spectrum;
+		
+		final ComplexFloatType value = new ComplexFloatType();
+		
+		// only for the imglib transform
+		Image< FloatType > plane = null;
+		
+		public Workspace( final Image< FloatType > image, final Plan plan )
+		{
+			this.plan = plan;
+			this.image = image;
+			this.source = Alignment.getArray( image );
+			
+			this.fftX = new FftReal( plan.fftWidth );
+			this.fftY = new FftComplex( plan.fftHeight );
+			
+			this.row = new float[ plan.fftWidth ];
+			this.rowSpectrum = new float[ plan.fftWidth + 2 ];
+			this.column = new float[ 2 * plan.fftHeight ];
+			this.columnSpectrum = new float[ 2 * plan.fftHeight ];
+			this.spectrum = new float[ 2 * plan.spectrumWidth * plan.fftHeight ];
+		}
+		
+		/**
+		 * Writes the bandpassed power spectrum of slice z into the target array.
+		 */
+		public void powerSpectrum( final int z, final float[] target, final int offset )
+		{
+			if ( plan.direct )
+				powerSpectrumDirect( z, target, offset );
+			else
+				powerSpectrumImgLib( z, target, offset );
+		}
+		
+		protected void powerSpectrumDirect( final int z, final float[] target, final int offset )
+		{
+			final int sliceOffset = z * plan.sliceSize;
+			final int w = plan.fftWidth;
+			final int h = plan.fftHeight;
+			final int sw = plan.spectrumWidth;
+			
+			// pad and transform the rows
+			for ( int y = 0; y < h; ++y )
+			{
+				final int o = y * w;
+				
+				for ( int x = 0; x < w; ++x )
+					row[ x ] = plan.a[ o + x ] + plan.b[ o + x ] * source[ sliceOffset + plan.index[ o + x ] ];
+				
+				fftX.realToComplex( -1, row, rowSpectrum );
+				System.arraycopy( rowSpectrum, 0, spectrum, y * 2 * sw, 2 * sw );
+			}
+			
+			// transform the columns and write them rearranged like imglib does: x reversed, y shifted by half
+			for ( int x = 0; x < sw; ++x )
+			{
+				for ( int y = 0; y < h; ++y )
+				{
+					column[ y * 2 ] = spectrum[ ( y * sw + x ) * 2 ];
+					column[ y * 2 + 1 ] = spectrum[ ( y * sw + x ) * 2 + 1 ];
+				}
+				
+				fftY.complexToComplex( -1, column, columnSpectrum );
+				
+				final int xr = sw - 1 - x;
+				
+				for ( int y = 0; y < h; ++y )
+				{
+					final int i = ( ( y + h / 2 ) % h ) * sw + xr;
+					
+					if ( plan.mask[ i ] )
+					{
+						value.setReal( columnSpectrum[ y * 2 ] );
+						value.setComplex( columnSpectrum[ y * 2 + 1 ] );
+						target[ offset + i ] = plan.display.get32Bit( value );
+					}
+					else
+					{
+						target[ offset + i ] = plan.outside;
+					}
+				}
+			}
+		}
+		
+		protected void powerSpectrumImgLib( final int z, final float[] target, final int offset )
+		{
+			if ( plane == null )
+				plane = image.createNewImage( new int[]{ plan.width, plan.height } );
+			
+			System.arraycopy( source, z * plan.sliceSize, Alignment.getArray( plane ), 0, plan.sliceSize );
+			
+			final FourierTransform< FloatType, ComplexFloatType > fft = new FourierTransform<FloatType, ComplexFloatType>( plane, new ComplexFloatType() );
+			fft.process();
+			
+			plan.write( fft.getResult(), target, offset );
+		}
+		
+		public void close()
+		{
+			if ( plane != null )
+				plane.close();
+		}
+	}
 }
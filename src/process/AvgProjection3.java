@@ -19,9 +19,16 @@
 package process;
 
 import ij.IJ;
+import io.PiezoStack;
+
+import java.io.IOException;
+
+import loci.formats.FormatException;
+import mpicbg.imglib.container.array.ArrayContainerFactory;
 import mpicbg.imglib.cursor.LocalizableByDimCursor;
 import mpicbg.imglib.cursor.LocalizableCursor;
 import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.util.RealSum;
 
@@ -76,4 +83,67 @@ public class AvgProjection3
 		}
 		return projection;
 	}
+
+	/**
+	 * Computes the average intensity projection of one tile of a {@link PiezoStack} slice by slice, the tile stack 
+	 * itself is never loaded.
+	 * 
+	 * @param stack - the lazy piezo stack
+	 * @param tile - which tile
+	 * @return - the projection
+	 */
+	public static Image< FloatType > project( final PiezoStack stack, final int tile ) throws FormatException, IOException
+	{
+		return project( stack, new int[]{ tile } )[ 0 ];
+	}
+
+	/**
+	 * Computes the average intensity projections of several tiles of a {@link PiezoStack} in one pass over the 
+	 * slices, so every file is decoded only once no matter how many decoded slices the stack caches.
+	 * 
+	 * @param stack - the lazy piezo stack
+	 * @param tiles - which tiles
+	 * @return - the projections, in the order of the tiles
+	 */
+	public static Image< FloatType >[] project( final PiezoStack stack, final int[] tiles ) throws FormatException, IOException
+	{
+		final ImageFactory< FloatType > factory = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() );
+		
+		final Image< FloatType > plane = factory.createImage( new int[]{ stack.getTileWidth(), stack.getTileHeight() } );
+		final float[] planeData = Alignment.getArray( plane );
+		
+		@SuppressWarnings("unchecked")
+		final Image< FloatType >[] projections = new Image[ tiles.length ];
+		final double[][] sums = new double[ tiles.length ][ planeData.length ];
+		
+		final int d = stack.getNumSlices();
+		
+		for ( int z = 0; z < d; ++z )
+		{
+			for ( int t = 0; t < tiles.length; ++t )
+			{
+				stack.extractPlane( tiles[ t ], z, plane );
+				
+				final double[] sum = sums[ t ];
+				
+				for ( int i = 0; i < sum.length; ++i )
+					sum[ i ] += planeData[ i ];
+			}
+		}
+		
+		for ( int t = 0; t < tiles.length; ++t )
+		{
+			projections[ t ] = factory.createImage( new int[]{ stack.getTileWidth(), stack.getTileHeight() } );
+			
+			final float[] projectionData = Alignment.getArray( projections[ t ] );
+			final double[] sum = sums[ t ];
+			
+			for ( int i = 0; i < sum.length; ++i )
+				projectionData[ i ] = (float)( sum[ i ] / (double)d );
+		}
+		
+		plane.close();
+		
+		return projections;
+	}
 }
@@ -84,6 +84,30 @@ public class ComputeEntropy
 		return entropies;
 	}
 	
+	/**
+	 * Same as {@link #computeEntropy(Image, int, float, float)} for a part of an array.
+	 * 
+	 * @param values - the values
+	 * @param offset - the first value
+	 * @param length - the number of values
+	 */
+	public static float computeEntropy( final float[] values, final int offset, final int length, final int bins, final float min, final float max )
+	{
+		final int[] hist = new int[ bins ];
+		
+		final float diff = max - min;
+		
+		for ( int i = offset; i < offset + length; ++i )
+		{
+			final float v = values[ i ];
+			
+			if ( v != 0 )
+				++hist[ Math.round( ((v - min)/diff) * (bins-1) ) ];
+		}
+		
+		return entropy( hist );
+	}
+	
 	public static float computeEntropy( final Image< FloatType > image, final int bins, final float min, final float max )
 	{
 		final int[] hist = new int[ bins ];
@@ -94,6 +118,11 @@ public class ComputeEntropy
 			if ( t.get() != 0 )
 				++hist[ Math.round( ((t.get() - min)/diff) * (bins-1) ) ];
 		
+		return entropy( hist );
+	}
+	
+	protected static float entropy( final int[] hist )
+	{
 		float entropy = 0;
 		
 		long sum = 0;
@@ -0,0 +1,265 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+
+/**
+ * Matches two 1d-curves (entropy profiles) by computing the normalized cross-correlation for all integer offsets
+ * at once using an FFT. The normalization uses only the overlapping part of both curves (computed from prefix sums),
+ * offsets where less than half of the shorter curve overlaps are ignored. The maximum is refined to sub-pixel
+ * precision by fitting a parabola through the peak and its neighbors.
+ * 
+ * The offset has the same meaning as in {@link Alignment#align1d(float[], float[], double, double)}: sample x of the
+ * reference corresponds to x + offset in the template.
+ * 
+ * @author preibischs
+ *
+ */
+public class CorrelationMatcher1D 
+{
+	/**
+	 * A curve together with its prefix sums and its fourier transform, it can be reused for all pairs it is part of.
+	 */
+	public static class Spectrum
+	{
+		final int length, fftSize;
+		final double[] sum, sumSq;
+		final double[] re, im;
+		
+		/**
+		 * @param values - the curve
+		 * @param fftSize - the size of the fft, a power of two that is at least the sum of the length of both curves
+		 */
+		public Spectrum( final float[] values, final int fftSize )
+		{
+			this.length = values.length;
+			this.fftSize = fftSize;
+			this.sum = new double[ length + 1 ];
+			this.sumSq = new double[ length + 1 ];
+			this.re = new double[ fftSize ];
+			this.im = new double[ fftSize ];
+			
+			for ( int i = 0; i < length; ++i )
+			{
+				final double v = values[ i ];
+				
+				sum[ i + 1 ] = sum[ i ] + v;
+				sumSq[ i + 1 ] = sumSq[ i ] + v * v;
+				re[ i ] = v;
+			}
+			
+			FFT1D.transform( re, im, false );
+		}
+		
+		public int getLength() { return length; }
+		public int getFFTSize() { return fftSize; }
+	}
+	
+	/**
+	 * @return - the size of the fft that is necessary to correlate curves of these lengths without wrap-around
+	 */
+	public static int getFFTSize( final int lengthA, final int lengthB )
+	{
+		return FFT1D.nextPowerOfTwo( lengthA + lengthB );
+	}
+	
+	/**
+	 * @param reference - the reference curve
+	 * @param template - the curve to align
+	 * @return - the offset and the confidence
+	 */
+	public static CorrelationPeak align( final float[] reference, final float[] template )
+	{
+		final int fftSize = getFFTSize( reference.length, template.length );
+		
+		return align( new Spectrum( reference, fftSize ), new Spectrum( template, fftSize ), new double[ fftSize ], new double[ fftSize ] );
+	}
+	
+	/**
+	 * Correlates all pairs of curves. Each curve is transformed only once, every pair then costs one product of the
+	 * spectra and one inverse transform. Only pairs a &lt; b are computed, the offset of b &gt; a is the negative
+	 * offset with the same confidence.
+	 * 
+	 * @param curves - all curves
+	 * @param numThreads - how many threads to use
+	 * @return - the offset and confidence matrix (the diagonal is 0 with confidence 1)
+	 */
+	public static PairwiseOffsets alignAllPairs( final float[][] curves, final int numThreads )
+	{
+		final int numCurves = curves.length;
+		
+		int maxLength = 0;
+		for ( final float[] curve : curves )
+			maxLength = Math.max( maxLength, curve.length );
+		
+		final int fftSize = getFFTSize( maxLength, maxLength );
+		
+		final Spectrum[] spectra = new Spectrum[ numCurves ];
+		final float[][] offsets = new float[ numCurves ][ numCurves ];
+		final float[][] confidences = new float[ numCurves ][ numCurves ];
+		
+		// the transforms
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numCurves ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < numCurves; i = ai.getAndIncrement() )
+						spectra[ i ] = new Spectrum( curves[ i ], fftSize );
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		// the pairs
+		final int numJobs = numCurves * numCurves;
+		ai.set( 0 );
+		threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numJobs ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final double[] bufferRe = new double[ fftSize ];
+					final double[] bufferIm = new double[ fftSize ];
+					
+					for ( int job = ai.getAndIncrement(); job < numJobs; job = ai.getAndIncrement() )
+					{
+						final int a = job / numCurves;
+						final int b = job % numCurves;
+						
+						if ( a < b )
+						{
+							final CorrelationPeak peak = align( spectra[ a ], spectra[ b ], bufferRe, bufferIm );
+							
+							offsets[ a ][ b ] = peak.offset;
+							offsets[ b ][ a ] = -peak.offset;
+							confidences[ a ][ b ] = confidences[ b ][ a ] = peak.confidence;
+						}
+						else if ( a == b )
+						{
+							confidences[ a ][ b ] = 1;
+						}
+					}
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		return new PairwiseOffsets( offsets, confidences );
+	}
+	
+	/**
+	 * Correlates two precomputed spectra, the buffers are reused.
+	 * 
+	 * @param reference - the spectrum of the reference
+	 * @param template - the spectrum of the template, same fft size as the reference
+	 * @param bufferRe - buffer of the size of the fft
+	 * @param bufferIm - buffer of the size of the fft
+	 * @return - the offset and the confidence
+	 */
+	public static CorrelationPeak align( final Spectrum reference, final Spectrum template, final double[] bufferRe, final double[] bufferIm )
+	{
+		final int n = reference.fftSize;
+		
+		if ( template.fftSize != n || bufferRe.length != n || bufferIm.length != n )
+			throw new IllegalArgumentException( "All spectra and buffers must have the same size." );
+		
+		// conj( R ) * T is the transform of c[ o ] = sum_x r[ x ] * t[ x + o ]
+		for ( int i = 0; i < n; ++i )
+		{
+			final double rRe = reference.re[ i ];
+			final double rIm = reference.im[ i ];
+			final double tRe = template.re[ i ];
+			final double tIm = template.im[ i ];
+			
+			bufferRe[ i ] = rRe * tRe + rIm * tIm;
+			bufferIm[ i ] = rRe * tIm - rIm * tRe;
+		}
+		
+		FFT1D.transform( bufferRe, bufferIm, true );
+		
+		final int maxShift = Math.min( reference.length, template.length ) / 2;
+		final int numShifts = 2 * maxShift + 1;
+		
+		// the ncc for offset o is stored at o + maxShift, the buffer is not needed anymore
+		final double[] ncc = bufferIm;
+		
+		int best = -1;
+		
+		for ( int o = -maxShift; o <= maxShift; ++o )
+		{
+			final double value = ncc( reference, template, o, bufferRe[ ( o + n ) % n ] );
+			ncc[ o + maxShift ] = value;
+			
+			if ( best < 0 || value > ncc[ best ] )
+				best = o + maxShift;
+		}
+		
+		// sub-pixel refinement through a parabola
+		double offset = best - maxShift;
+		
+		if ( best > 0 && best < numShifts - 1 )
+		{
+			final double y0 = ncc[ best - 1 ];
+			final double y1 = ncc[ best ];
+			final double y2 = ncc[ best + 1 ];
+			final double denominator = y0 - 2 * y1 + y2;
+			
+			if ( denominator < 0 )
+				offset += Math.max( -0.5, Math.min( 0.5, 0.5 * ( y0 - y2 ) / denominator ) );
+		}
+		
+		return new CorrelationPeak( (float)offset, (float)ncc[ best ] );
+	}
+	
+	/**
+	 * @param product - sum_x r[ x ] * t[ x + o ] over the overlap
+	 * @return - the normalized cross-correlation of the overlapping parts for offset o
+	 */
+	protected static double ncc( final Spectrum reference, final Spectrum template, final int o, final double product )
+	{
+		final int start = Math.max( 0, -o );
+		final int end = Math.min( reference.length, template.length - o );
+		final int count = end - start;
+		
+		if ( count <= 1 )
+			return -1;
+		
+		final double sumR = reference.sum[ end ] - reference.sum[ start ];
+		final double sumRR = reference.sumSq[ end ] - reference.sumSq[ start ];
+		final double sumT = template.sum[ end + o ] - template.sum[ start + o ];
+		final double sumTT = template.sumSq[ end + o ] - template.sumSq[ start + o ];
+		
+		final double varR = sumRR - sumR * sumR / count;
+		final double varT = sumTT - sumT * sumT / count;
+		
+		if ( varR <= 0 || varT <= 0 )
+			return -1;
+		
+		return ( product - sumR * sumT / count ) / Math.sqrt( varR * varT );
+	}
+}
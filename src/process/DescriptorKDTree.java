@@ -0,0 +1,177 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+import java.util.List;
+
+/**
+ * Static kd-tree for n-dimensional float points (peak positions or descriptors) that finds the k nearest neighbors
+ * of a query. The tree is immutable after construction and can be queried by several threads at the same time.
+ * 
+ * @author preibischs
+ *
+ */
+public class DescriptorKDTree 
+{
+	final float[][] points;
+	final int numDimensions;
+	
+	// the points in tree order, the split dimension of each node is depth % numDimensions
+	final int[] order;
+	
+	/**
+	 * @param points - the points, all of the same dimensionality
+	 */
+	public DescriptorKDTree( final List< float[] > points )
+	{
+		this.points = points.toArray( new float[ points.size() ][] );
+		this.numDimensions = this.points.length == 0 ? 0 : this.points[ 0 ].length;
+		this.order = new int[ this.points.length ];
+		
+		for ( int i = 0; i < order.length; ++i )
+			order[ i ] = i;
+		
+		build( 0, order.length, 0 );
+	}
+	
+	public int size() { return points.length; }
+	public float[] getPoint( final int i ) { return points[ i ]; }
+	
+	protected void build( final int from, final int to, final int depth )
+	{
+		if ( to - from <= 1 )
+			return;
+		
+		final int d = depth % numDimensions;
+		final int median = ( from + to ) >>> 1;
+		
+		select( from, to - 1, median, d );
+		
+		build( from, median, depth + 1 );
+		build( median + 1, to, depth + 1 );
+	}
+	
+	/**
+	 * quickselect, afterwards order[ k ] is the element that would be there if sorted by dimension d
+	 */
+	protected void select( int left, int right, final int k, final int d )
+	{
+		while ( right > left )
+		{
+			final float pivot = points[ order[ ( left + right ) >>> 1 ] ][ d ];
+			int i = left;
+			int j = right;
+			
+			while ( i <= j )
+			{
+				while ( points[ order[ i ] ][ d ] < pivot )
+					++i;
+				while ( points[ order[ j ] ][ d ] > pivot )
+					--j;
+				
+				if ( i <= j )
+				{
+					final int tmp = order[ i ];
+					order[ i ] = order[ j ];
+					order[ j ] = tmp;
+					++i;
+					--j;
+				}
+			}
+			
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+	
+	/**
+	 * Finds the k nearest neighbors of the query.
+	 * 
+	 * @param query - the query point
+	 * @param k - how many neighbors
+	 * @param indices - receives the indices of the neighbors, sorted by distance (-1 if there are less than k points)
+	 * @param squaredDistances - receives the squared distances
+	 */
+	public void nearest( final float[] query, final int k, final int[] indices, final double[] squaredDistances )
+	{
+		for ( int i = 0; i < k; ++i )
+		{
+			indices[ i ] = -1;
+			squaredDistances[ i ] = Double.MAX_VALUE;
+		}
+		
+		search( query, k, 0, order.length, 0, indices, squaredDistances );
+	}
+	
+	protected void search( final float[] query, final int k, final int from, final int to, final int depth, final int[] indices, final double[] squaredDistances )
+	{
+		if ( to <= from )
+			return;
+		
+		final int median = ( from + to ) >>> 1;
+		final int index = order[ median ];
+		final float[] point = points[ index ];
+		
+		// insert the node itself
+		double distance = 0;
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final double diff = point[ d ] - query[ d ];
+			distance += diff * diff;
+		}
+		
+		if ( distance < squaredDistances[ k - 1 ] )
+		{
+			int i = k - 1;
+			
+			while ( i > 0 && squaredDistances[ i - 1 ] > distance )
+			{
+				squaredDistances[ i ] = squaredDistances[ i - 1 ];
+				indices[ i ] = indices[ i - 1 ];
+				--i;
+			}
+			
+			squaredDistances[ i ] = distance;
+			indices[ i ] = index;
+		}
+		
+		final int d = depth % numDimensions;
+		final double diff = query[ d ] - point[ d ];
+		
+		// first the side of the query, then the other side if it can contain closer points
+		if ( diff < 0 )
+		{
+			search( query, k, from, median, depth + 1, indices, squaredDistances );
+			
+			if ( diff * diff < squaredDistances[ k - 1 ] )
+				search( query, k, median + 1, to, depth + 1, indices, squaredDistances );
+		}
+		else
+		{
+			search( query, k, median + 1, to, depth + 1, indices, squaredDistances );
+			
+			if ( diff * diff < squaredDistances[ k - 1 ] )
+				search( query, k, from, median, depth + 1, indices, squaredDistances );
+		}
+	}
+}
@@ -0,0 +1,493 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.AbstractModel;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel2D;
+
+/**
+ * Descriptor-based registration of a series of 2d-images (all-to-all with global optimization) that works directly on
+ * the {@link Image}s. The DoG peaks and the descriptors of every image are computed once, all pairs are matched in 
+ * parallel. The descriptors are the relative positions of the nearest neighboring peaks ordered by distance. For all
+ * models except {@link TranslationModel2D} they are expressed in a local frame whose x-axis points to the nearest of
+ * these neighbors, which makes them rotation invariant.
+ * 
+ * For a {@link TranslationModel2D} the translation of every pair is first estimated by {@link PhaseCorrelation2D}, 
+ * peaks and descriptors are only computed for images that are part of a pair with a low confidence.
+ * 
+ * @author preibischs
+ *
+ */
+public class DescriptorXYRegistration 
+{
+	// the detection, same as for the descriptor-based registration plugin
+	public double sigma1 = 2.99;
+	public double sigma2 = 3.55;
+	public double threshold = 0.010566484;
+	public boolean lookForMaxima = true;
+	public boolean lookForMinima = true;
+	
+	// the descriptors and the matching
+	public int numNeighbors = 3;
+	public int redundancy = 1;
+	public double significance = 3;
+	
+	// ransac and global optimization
+	public float ransacThreshold = 5;
+	public float minInlierRatio = 0.05f;
+	public int ransacIterations = 1000;
+	public int minInlierFactor = 3;
+	
+	// estimate translations by phase correlation first (only for TranslationModel2D), pairs below minPhaseCorrelation use the descriptors
+	public boolean phaseCorrelation = true;
+	public float minPhaseCorrelation = 0.7f;
+	public double minPhaseOverlap = 0.25;
+	public int numPhasePeaks = 5;
+	
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * The peaks of one image and the kd-tree of all its descriptors
+	 */
+	protected static class Descriptors
+	{
+		final ArrayList< float[] > peaks;
+		
+		// which peak each descriptor belongs to
+		final int[] peakIndex;
+		final DescriptorKDTree tree;
+		
+		public Descriptors( final ArrayList< float[] > peaks, final ArrayList< float[] > descriptors, final int[] peakIndex )
+		{
+			this.peaks = peaks;
+			this.peakIndex = peakIndex;
+			this.tree = descriptors.size() > 0 ? new DescriptorKDTree( descriptors ) : null;
+		}
+	}
+	
+	/**
+	 * Registers all images onto the first one.
+	 * 
+	 * @param images - the 2d-images
+	 * @param model - the model to use (e.g. RigidModel2D, AffineModel2D), it has to be {@link InvertibleBoundable}
+	 * @return - the models of all images, the first one of every group of connected images is fixed
+	 * @throws NotEnoughDataPointsException - if an image could not be matched to any other image
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public ArrayList< InvertibleBoundable > register( final List< Image< FloatType > > images, final AbstractModel< ? > model ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final int numImages = images.size();
+		
+		// all pairs a < b
+		final int numPairs = numImages * ( numImages - 1 ) / 2;
+		final int[] pairA = new int[ numPairs ];
+		final int[] pairB = new int[ numPairs ];
+		
+		for ( int a = 0, p = 0; a < numImages - 1; ++a )
+			for ( int b = a + 1; b < numImages; ++b, ++p )
+			{
+				pairA[ p ] = a;
+				pairB[ p ] = b;
+			}
+		
+		final ArrayList< ArrayList< PointMatch > > inliers = new ArrayList< ArrayList< PointMatch > >();
+		for ( int p = 0; p < numPairs; ++p )
+			inliers.add( null );
+		
+		// a translation can be estimated by phase correlation, only the pairs with a low confidence need the descriptors
+		final boolean[] needsDescriptors = new boolean[ numPairs ];
+		
+		if ( phaseCorrelation && model instanceof TranslationModel2D )
+			correlateAllPairs( images, pairA, pairB, inliers );
+		
+		for ( int p = 0; p < numPairs; ++p )
+			needsDescriptors[ p ] = inliers.get( p ) == null;
+		
+		// detect peaks and build the descriptors once per image that is part of such a pair, a translation does not 
+		// change the orientation so the descriptors do not need to be rotation invariant
+		final boolean rotationInvariant = !( model instanceof TranslationModel2D );
+		final Descriptors[] descriptors = new Descriptors[ numImages ];
+		final boolean[] needsImage = new boolean[ numImages ];
+		
+		for ( int p = 0; p < numPairs; ++p )
+			if ( needsDescriptors[ p ] )
+				needsImage[ pairA[ p ] ] = needsImage[ pairB[ p ] ] = true;
+		
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numImages ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < numImages; i = ai.getAndIncrement() )
+						if ( needsImage[ i ] )
+							descriptors[ i ] = createDescriptors( DoGPeakDetector.detect( images.get( i ), sigma1, sigma2, threshold, lookForMaxima, lookForMinima ), rotationInvariant );
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		for ( int i = 0; i < numImages; ++i )
+			if ( needsImage[ i ] )
+				System.out.println( "Image " + i + ": " + descriptors[ i ].peaks.size() + " peaks." );
+		
+		// match the remaining pairs
+		final AtomicInteger aj = new AtomicInteger( 0 );
+		threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numPairs ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int p = aj.getAndIncrement(); p < numPairs; p = aj.getAndIncrement() )
+					{
+						if ( !needsDescriptors[ p ] )
+							continue;
+						
+						final ArrayList< PointMatch > pairInliers = matchPair( descriptors[ pairA[ p ] ], descriptors[ pairB[ p ] ], model.copy() );
+						
+						synchronized ( inliers ) { inliers.set( p, pairInliers ); }
+					}
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		// global optimization
+		final Tile[] tiles = new Tile[ numImages ];
+		for ( int i = 0; i < numImages; ++i )
+			tiles[ i ] = new Tile( model.copy() );
+		
+		for ( int p = 0; p < numPairs; ++p )
+		{
+			final ArrayList< PointMatch > pairInliers = inliers.get( p );
+			
+			if ( pairInliers == null )
+				continue;
+			
+			System.out.println( pairA[ p ] + " <-> " + pairB[ p ] + ": " + pairInliers.size() + " inliers." );
+			
+			tiles[ pairA[ p ] ].addMatches( pairInliers );
+			tiles[ pairB[ p ] ].addMatches( PointMatch.flip( pairInliers ) );
+			tiles[ pairA[ p ] ].addConnectedTile( tiles[ pairB[ p ] ] );
+			tiles[ pairB[ p ] ].addConnectedTile( tiles[ pairA[ p ] ] );
+		}
+		
+		// every image has to be matched to at least one other image, otherwise its transform is unknown
+		for ( int i = 0; i < numImages && numImages > 1; ++i )
+			if ( tiles[ i ].getConnectedTiles().size() == 0 )
+				throw new NotEnoughDataPointsException( "Image " + i + " could not be matched to any other image." );
+		
+		// fix the first tile of every group of connected tiles, otherwise a group would be free to move
+		final TileConfiguration tc = new TileConfiguration();
+		final int[] component = getConnectedComponents( tiles );
+		
+		for ( int i = 0; i < numImages; ++i )
+		{
+			tc.addTile( tiles[ i ] );
+			
+			if ( component[ i ] == i )
+			{
+				tc.fixTile( tiles[ i ] );
+				
+				if ( i > 0 )
+					System.out.println( "Image " + i + " is not connected to image 0, fixing it as well." );
+			}
+		}
+		
+		if ( numImages > 1 )
+			tc.optimize( 10, 10000, 200 );
+		
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		
+		for ( int i = 0; i < numImages; ++i )
+			models.add( (InvertibleBoundable)tiles[ i ].getModel() );
+		
+		return models;
+	}
+	
+	/**
+	 * Estimates the translation of all pairs by phase correlation, every image is transformed only once. Pairs whose
+	 * confidence is at least minPhaseCorrelation get the corners of their overlapping area as matches, the others
+	 * remain null.
+	 */
+	protected void correlateAllPairs( final List< Image< FloatType > > images, final int[] pairA, final int[] pairB, final ArrayList< ArrayList< PointMatch > > inliers )
+	{
+		final int numImages = images.size();
+		final int numPairs = pairA.length;
+		final PhaseCorrelation2D.Spectrum[] spectra = new PhaseCorrelation2D.Spectrum[ numImages ];
+		
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numImages ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < numImages; i = ai.getAndIncrement() )
+						spectra[ i ] = new PhaseCorrelation2D.Spectrum( images.get( i ) );
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		ai.set( 0 );
+		threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numPairs ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int p = ai.getAndIncrement(); p < numPairs; p = ai.getAndIncrement() )
+					{
+						final PhaseCorrelation2D.Spectrum a = spectra[ pairA[ p ] ];
+						final PhaseCorrelationPeak peak = PhaseCorrelation2D.align( a, spectra[ pairB[ p ] ], numPhasePeaks, minPhaseOverlap );
+						
+						if ( peak == null || peak.confidence < minPhaseCorrelation )
+						{
+							System.out.println( pairA[ p ] + " <-> " + pairB[ p ] + ": phase correlation " + ( peak == null ? "failed" : "r=" + peak.confidence ) + ", using descriptors." );
+							continue;
+						}
+						
+						// the corners of the overlapping area in a and where they are in b
+						final float x0 = Math.max( 0, -peak.dx );
+						final float x1 = Math.min( a.getWidth() - 1, a.getWidth() - 1 - peak.dx );
+						final float y0 = Math.max( 0, -peak.dy );
+						final float y1 = Math.min( a.getHeight() - 1, a.getHeight() - 1 - peak.dy );
+						
+						final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+						
+						for ( final float x : new float[]{ x0, x1 } )
+							for ( final float y : new float[]{ y0, y1 } )
+								matches.add( new PointMatch( new Point( new float[]{ x, y } ), new Point( new float[]{ x + peak.dx, y + peak.dy } ) ) );
+						
+						synchronized ( inliers ) { inliers.set( p, matches ); }
+					}
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+	
+	/**
+	 * @return - for every tile the index of the first tile it is (indirectly) connected to
+	 */
+	@SuppressWarnings("rawtypes")
+	protected static int[] getConnectedComponents( final Tile[] tiles )
+	{
+		final int[] component = new int[ tiles.length ];
+		final HashMap< Tile, Integer > index = new HashMap< Tile, Integer >();
+		
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			component[ i ] = -1;
+			index.put( tiles[ i ], i );
+		}
+		
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			if ( component[ i ] >= 0 )
+				continue;
+			
+			final ArrayList< Integer > queue = new ArrayList< Integer >();
+			queue.add( i );
+			component[ i ] = i;
+			
+			for ( int q = 0; q < queue.size(); ++q )
+				for ( final Object connected : tiles[ queue.get( q ) ].getConnectedTiles() )
+				{
+					final int j = index.get( connected );
+					
+					if ( component[ j ] < 0 )
+					{
+						component[ j ] = i;
+						queue.add( j );
+					}
+				}
+		}
+		
+		return component;
+	}
+	
+	/**
+	 * Creates all descriptors of the peaks, every peak has one descriptor for every subset of numNeighbors out of its
+	 * numNeighbors + redundancy nearest neighbors.
+	 * 
+	 * @param rotationInvariant - express the offsets of the neighbors in a local frame whose x-axis points to the 
+	 * first (nearest) neighbor of the subset, otherwise the offsets are used as they are
+	 */
+	protected Descriptors createDescriptors( final ArrayList< float[] > peaks, final boolean rotationInvariant )
+	{
+		final int numCandidates = numNeighbors + redundancy;
+		final ArrayList< float[] > descriptors = new ArrayList< float[] >();
+		final ArrayList< Integer > owner = new ArrayList< Integer >();
+		
+		if ( peaks.size() > numCandidates )
+		{
+			final DescriptorKDTree tree = new DescriptorKDTree( peaks );
+			final int[] indices = new int[ numCandidates + 1 ];
+			final double[] distances = new double[ numCandidates + 1 ];
+			final int[][] subsets = subsets( numCandidates, numNeighbors );
+			
+			for ( int i = 0; i < peaks.size(); ++i )
+			{
+				final float[] peak = peaks.get( i );
+				
+				// the first one is the peak itself
+				tree.nearest( peak, numCandidates + 1, indices, distances );
+				
+				for ( final int[] subset : subsets )
+				{
+					final float[] descriptor = new float[ numNeighbors * 2 ];
+					
+					// the rotation into the local frame, the subset is ordered by distance
+					final float[] first = peaks.get( indices[ subset[ 0 ] + 1 ] );
+					final double angle = rotationInvariant ? Math.atan2( first[ 1 ] - peak[ 1 ], first[ 0 ] - peak[ 0 ] ) : 0;
+					final double cos = Math.cos( angle );
+					final double sin = Math.sin( angle );
+					
+					for ( int j = 0; j < numNeighbors; ++j )
+					{
+						final float[] neighbor = peaks.get( indices[ subset[ j ] + 1 ] );
+						final double dx = neighbor[ 0 ] - peak[ 0 ];
+						final double dy = neighbor[ 1 ] - peak[ 1 ];
+						
+						descriptor[ j * 2 ] = (float)( cos * dx + sin * dy );
+						descriptor[ j * 2 + 1 ] = (float)( -sin * dx + cos * dy );
+					}
+					
+					descriptors.add( descriptor );
+					owner.add( i );
+				}
+			}
+		}
+		
+		final int[] peakIndex = new int[ owner.size() ];
+		for ( int i = 0; i < peakIndex.length; ++i )
+			peakIndex[ i ] = owner.get( i );
+		
+		return new Descriptors( peaks, descriptors, peakIndex );
+	}
+	
+	/**
+	 * Matches the descriptors of image a to the ones of image b and removes the outliers.
+	 * 
+	 * @return - the inliers (peak in a to peak in b), or null if no model could be found
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected ArrayList< PointMatch > matchPair( final Descriptors a, final Descriptors b, final AbstractModel model )
+	{
+		if ( b.tree == null || b.tree.size() < 2 )
+			return null;
+		
+		final int[] indices = new int[ 2 ];
+		final double[] distances = new double[ 2 ];
+		final double significance2 = significance * significance;
+		
+		// the same pair of peaks can be matched by several descriptors
+		final HashSet< Long > matched = new HashSet< Long >();
+		final ArrayList< PointMatch > candidates = new ArrayList< PointMatch >();
+		
+		for ( int i = 0; i < a.peakIndex.length; ++i )
+		{
+			b.tree.nearest( a.tree.getPoint( i ), 2, indices, distances );
+			
+			// the best match has to be significantly better than the second best one
+			if ( distances[ 1 ] < significance2 * distances[ 0 ] )
+				continue;
+			
+			final int peakA = a.peakIndex[ i ];
+			final int peakB = b.peakIndex[ indices[ 0 ] ];
+			
+			if ( matched.add( ( (long)peakA << 32 ) | peakB ) )
+				candidates.add( new PointMatch( new Point( a.peaks.get( peakA ).clone() ), new Point( b.peaks.get( peakB ).clone() ) ) );
+		}
+		
+		final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
+		
+		try
+		{
+			if ( !model.ransac( candidates, inliers, ransacIterations, ransacThreshold, minInlierRatio ) || inliers.size() < minInlierFactor * model.getMinNumMatches() )
+				return null;
+			
+			model.fit( inliers );
+		}
+		catch ( NotEnoughDataPointsException e )
+		{
+			return null;
+		}
+		catch ( IllDefinedDataPointsException e )
+		{
+			return null;
+		}
+		
+		return inliers;
+	}
+	
+	/**
+	 * @return - all subsets of size k of { 0 ... n-1 }, each in ascending order
+	 */
+	protected static int[][] subsets( final int n, final int k )
+	{
+		final ArrayList< int[] > subsets = new ArrayList< int[] >();
+		final int[] subset = new int[ k ];
+		
+		for ( int i = 0; i < k; ++i )
+			subset[ i ] = i;
+		
+		while ( true )
+		{
+			subsets.add( subset.clone() );
+			
+			int i = k - 1;
+			while ( i >= 0 && subset[ i ] == n - k + i )
+				--i;
+			
+			if ( i < 0 )
+				break;
+			
+			++subset[ i ];
+			for ( int j = i + 1; j < k; ++j )
+				subset[ j ] = subset[ j - 1 ] + 1;
+		}
+		
+		return subsets.toArray( new int[ subsets.size() ][] );
+	}
+}
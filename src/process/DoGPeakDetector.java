@@ -0,0 +1,190 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+import java.util.ArrayList;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * Detects the extrema of the difference-of-gaussian of a 2d-image, with sub-pixel localization. The image is
+ * normalized to [0...1] first, so the threshold is relative to the intensity range (as in the descriptor-based
+ * registration). Works directly on the float array of the image.
+ * 
+ * @author preibischs
+ *
+ */
+public class DoGPeakDetector 
+{
+	/**
+	 * @param image - the 2d-image, backed by an array
+	 * @param sigma1 - the smaller sigma
+	 * @param sigma2 - the larger sigma
+	 * @param threshold - minimal absolute value of the DoG
+	 * @param lookForMaxima - detect maxima (bright spots)
+	 * @param lookForMinima - detect minima (dark spots)
+	 * @return - the sub-pixel location of all peaks
+	 */
+	public static ArrayList< float[] > detect( final Image< FloatType > image, final double sigma1, final double sigma2, final double threshold, final boolean lookForMaxima, final boolean lookForMinima )
+	{
+		return detect( Alignment.getArray( image ), image.getDimension( 0 ), image.getDimension( 1 ), sigma1, sigma2, threshold, lookForMaxima, lookForMinima );
+	}
+	
+	public static ArrayList< float[] > detect( final float[] pixels, final int width, final int height, final double sigma1, final double sigma2, final double threshold, final boolean lookForMaxima, final boolean lookForMinima )
+	{
+		// normalize to [0...1]
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		
+		for ( final float v : pixels )
+		{
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+		}
+		
+		final float[] normalized = new float[ pixels.length ];
+		final float range = max > min ? max - min : 1;
+		
+		for ( int i = 0; i < pixels.length; ++i )
+			normalized[ i ] = ( pixels[ i ] - min ) / range;
+		
+		// the image is assumed to already have a sigma of 0.5
+		final float[] g1 = gauss( normalized, width, height, Math.sqrt( Math.max( 0, sigma1 * sigma1 - 0.25 ) ) );
+		final float[] g2 = gauss( normalized, width, height, Math.sqrt( Math.max( 0, sigma2 * sigma2 - 0.25 ) ) );
+		
+		final float[] dog = g1;
+		for ( int i = 0; i < dog.length; ++i )
+			dog[ i ] -= g2[ i ];
+		
+		final ArrayList< float[] > peaks = new ArrayList< float[] >();
+		
+		for ( int y = 1; y < height - 1; ++y )
+			for ( int x = 1; x < width - 1; ++x )
+			{
+				final int i = y * width + x;
+				final float v = dog[ i ];
+				
+				if ( Math.abs( v ) < threshold )
+					continue;
+				
+				boolean isMax = lookForMaxima && v > 0;
+				boolean isMin = lookForMinima && v < 0;
+				
+				for ( int dy = -1; dy <= 1 && ( isMax || isMin ); ++dy )
+					for ( int dx = -1; dx <= 1; ++dx )
+					{
+						if ( dx == 0 && dy == 0 )
+							continue;
+						
+						final float n = dog[ i + dy * width + dx ];
+						
+						if ( n >= v )
+							isMax = false;
+						if ( n <= v )
+							isMin = false;
+					}
+				
+				if ( isMax || isMin )
+					peaks.add( new float[]{ x + subpixel( dog[ i - 1 ], v, dog[ i + 1 ] ), y + subpixel( dog[ i - width ], v, dog[ i + width ] ) } );
+			}
+		
+		return peaks;
+	}
+	
+	/**
+	 * @return - the position of the extremum of the parabola through the three values relative to the center
+	 */
+	protected static float subpixel( final float left, final float center, final float right )
+	{
+		final float denominator = left - 2 * center + right;
+		
+		if ( denominator == 0 )
+			return 0;
+		
+		return Math.max( -0.5f, Math.min( 0.5f, 0.5f * ( left - right ) / denominator ) );
+	}
+	
+	/**
+	 * Separable gaussian convolution with mirrored boundaries.
+	 */
+	public static float[] gauss( final float[] pixels, final int width, final int height, final double sigma )
+	{
+		if ( sigma <= 0 )
+			return pixels.clone();
+		
+		final int radius = Math.max( 1, (int)Math.ceil( 3 * sigma ) );
+		final float[] kernel = new float[ 2 * radius + 1 ];
+		
+		double sum = 0;
+		for ( int i = -radius; i <= radius; ++i )
+			sum += kernel[ i + radius ] = (float)Math.exp( -( i * i ) / ( 2 * sigma * sigma ) );
+		
+		for ( int i = 0; i < kernel.length; ++i )
+			kernel[ i ] /= sum;
+		
+		final float[] tmp = new float[ pixels.length ];
+		final float[] result = new float[ pixels.length ];
+		
+		// x
+		for ( int y = 0; y < height; ++y )
+		{
+			final int row = y * width;
+			
+			for ( int x = 0; x < width; ++x )
+			{
+				float v = 0;
+				
+				for ( int k = -radius; k <= radius; ++k )
+					v += kernel[ k + radius ] * pixels[ row + mirror( x + k, width ) ];
+				
+				tmp[ row + x ] = v;
+			}
+		}
+		
+		// y
+		for ( int y = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x )
+			{
+				float v = 0;
+				
+				for ( int k = -radius; k <= radius; ++k )
+					v += kernel[ k + radius ] * tmp[ mirror( y + k, height ) * width + x ];
+				
+				result[ y * width + x ] = v;
+			}
+		
+		return result;
+	}
+	
+	protected static int mirror( int i, final int size )
+	{
+		if ( size == 1 )
+			return 0;
+		
+		final int period = 2 * size - 2;
+		
+		i = i % period;
+		
+		if ( i < 0 )
+			i += period;
+		
+		return i < size ? i : period - i;
+	}
+}
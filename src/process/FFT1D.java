@@ -0,0 +1,120 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+/**
+ * In-place iterative radix-2 FFT of complex double arrays, the length must be a power of two.
+ * 
+ * @author preibischs
+ *
+ */
+public class FFT1D 
+{
+	/**
+	 * @return - the smallest power of two that is at least n
+	 */
+	public static int nextPowerOfTwo( final int n )
+	{
+		int size = 1;
+		
+		while ( size < n )
+			size <<= 1;
+		
+		return size;
+	}
+	
+	/**
+	 * Transforms the complex array, the inverse transform is scaled by 1/n.
+	 * 
+	 * @param re - real part
+	 * @param im - imaginary part
+	 * @param inverse - forward or inverse transform
+	 */
+	public static void transform( final double[] re, final double[] im, final boolean inverse )
+	{
+		final int n = re.length;
+		
+		if ( n != im.length || ( n & ( n - 1 ) ) != 0 )
+			throw new IllegalArgumentException( "Length must be a power of two and the same for both arrays: " + re.length + ", " + im.length );
+		
+		// bit reversal
+		for ( int i = 1, j = 0; i < n; ++i )
+		{
+			int bit = n >> 1;
+			
+			for ( ; ( j & bit ) != 0; bit >>= 1 )
+				j ^= bit;
+			
+			j ^= bit;
+			
+			if ( i < j )
+			{
+				double tmp = re[ i ];
+				re[ i ] = re[ j ];
+				re[ j ] = tmp;
+				
+				tmp = im[ i ];
+				im[ i ] = im[ j ];
+				im[ j ] = tmp;
+			}
+		}
+		
+		// butterflies
+		for ( int length = 2; length <= n; length <<= 1 )
+		{
+			final double angle = 2 * Math.PI / length * ( inverse ? 1 : -1 );
+			final double wRe = Math.cos( angle );
+			final double wIm = Math.sin( angle );
+			final int half = length >> 1;
+			
+			for ( int i = 0; i < n; i += length )
+			{
+				double curRe = 1;
+				double curIm = 0;
+				
+				for ( int j = 0; j < half; ++j )
+				{
+					final int a = i + j;
+					final int b = a + half;
+					
+					final double bRe = re[ b ] * curRe - im[ b ] * curIm;
+					final double bIm = re[ b ] * curIm + im[ b ] * curRe;
+					
+					re[ b ] = re[ a ] - bRe;
+					im[ b ] = im[ a ] - bIm;
+					re[ a ] += bRe;
+					im[ a ] += bIm;
+					
+					final double nextRe = curRe * wRe - curIm * wIm;
+					curIm = curRe * wIm + curIm * wRe;
+					curRe = nextRe;
+				}
+			}
+		}
+		
+		if ( inverse )
+		{
+			for ( int i = 0; i < n; ++i )
+			{
+				re[ i ] /= n;
+				im[ i ] /= n;
+			}
+		}
+	}
+}
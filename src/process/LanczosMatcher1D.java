@@ -0,0 +1,241 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Matches two 1d-curves (entropy profiles) by minimizing the mean absolute difference, the template is interpolated
+ * with a Lanczos kernel (alpha=5) and out of bounds values are set to the 5th percentile of the template. It computes
+ * the cost of {@link Alignment#computeDifference(mpicbg.imglib.image.Image, int, mpicbg.imglib.interpolation.Interpolator, float)}
+ * directly on arrays: all samples of one offset share the same sub-pixel phase, so the 10 kernel weights are computed
+ * once per offset and the interpolation is a sum of shifted, weighted copies of the padded template. The arithmetic
+ * differs in rounding, so the greedy search can end at a different offset than {@link Alignment#align1d(float[], float[], double, double)}.
+ * 
+ * An instance must not be used by several threads at the same time.
+ * 
+ * @author preibischs
+ *
+ */
+public class LanczosMatcher1D 
+{
+	final public static int alpha = 5;
+	
+	final float[] reference;
+	final int size, templateSize;
+	
+	// the template with alpha+1 out of bounds values on each side
+	final float[] padded;
+	final int pad = alpha + 1;
+	
+	final float[] weights = new float[ 2 * alpha ];
+	final float[] interpolated;
+	
+	/**
+	 * @param reference - the reference curve
+	 * @param template - the curve to align
+	 */
+	public LanczosMatcher1D( final float[] reference, final float[] template )
+	{
+		this.reference = reference;
+		this.size = reference.length;
+		this.templateSize = template.length;
+		this.interpolated = new float[ size ];
+		
+		this.padded = new float[ templateSize + 2 * pad ];
+		
+		Arrays.fill( padded, getLowestValue( template, templateSize ) );
+		System.arraycopy( template, 0, padded, pad, templateSize );
+	}
+	
+	/**
+	 * Same as {@link Alignment#get2ndPercentile(mpicbg.imglib.image.Image)}
+	 */
+	public static float getLowestValue( final float[] values, final int size )
+	{
+		final float[] tmp = Arrays.copyOf( values, size );
+		
+		Arrays.sort( tmp );
+		
+		return tmp[ Math.round( (tmp.length/100.0f) * 5.0f ) ];
+	}
+	
+	public static double lanczos( final double x )
+	{
+		if ( x == 0 )
+			return 1;
+		else if ( x <= -alpha || x >= alpha )
+			return 0;
+		else
+			return ( alpha * Math.sin( Math.PI * x ) * Math.sin( Math.PI * x / alpha ) ) / ( Math.PI * Math.PI * x * x );
+	}
+	
+	/**
+	 * @param offset - the offset of the template relative to the reference
+	 * @return - the mean absolute difference of all samples where the shifted template is defined
+	 */
+	public float computeDifference( final float offset )
+	{
+		// the range of reference samples that fall inside the template
+		int start = 0;
+		while ( start < size && !( start + offset >= 0 ) )
+			++start;
+		
+		int end = size;
+		while ( end > start && !( ( end - 1 ) + offset < templateSize ) )
+			--end;
+		
+		final int n = end - start;
+		
+		if ( n <= 0 )
+			return Float.NaN;
+		
+		// all samples have the same sub-pixel phase
+		final double floor = Math.floor( offset );
+		final double phase = offset - floor;
+		
+		for ( int k = 0; k < weights.length; ++k )
+			weights[ k ] = (float)lanczos( phase + alpha - 1 - k );
+		
+		// index of the first kernel tap of the first sample in the padded template
+		final int first = start + (int)floor - alpha + 1 + pad;
+		
+		Arrays.fill( interpolated, 0, n, 0 );
+		
+		for ( int k = 0; k < weights.length; ++k )
+		{
+			final float w = weights[ k ];
+			final int o = first + k;
+			
+			for ( int j = 0; j < n; ++j )
+				interpolated[ j ] += w * padded[ o + j ];
+		}
+		
+		double difference = 0;
+		
+		for ( int j = 0; j < n; ++j )
+			difference += Math.abs( reference[ start + j ] - interpolated[ j ] );
+		
+		return (float)( difference / n );
+	}
+	
+	/**
+	 * The greedy search of {@link Alignment#align1d(float[], float[], double, double, PrintWriter)}, starting at
+	 * offset 0 with a step size of half the length.
+	 * 
+	 * @param stepSize - factor by which the step size is reduced
+	 * @param minPrecision - the smallest step size
+	 * @param out - log, can be null
+	 * @return - the offset
+	 */
+	public float alignGreedy( final double stepSize, final double minPrecision, final PrintWriter out )
+	{
+		final float[] steps = Alignment.computeSteps( size, stepSize, minPrecision );
+		
+		return search( 0, computeDifference( 0 ), steps, out );
+	}
+	
+	/**
+	 * Evaluates all integer offsets up to half the length exhaustively and refines the best one with the
+	 * greedy search starting at a step size below one.
+	 * 
+	 * @param stepSize - factor by which the step size is reduced
+	 * @param minPrecision - the smallest step size
+	 * @param out - log, can be null
+	 * @return - the offset
+	 */
+	public float alignCoarseToFine( final double stepSize, final double minPrecision, final PrintWriter out )
+	{
+		float offset = 0;
+		float bestDifference = computeDifference( 0 );
+		
+		for ( int o = -size / 2; o <= size / 2; ++o )
+		{
+			final float d = computeDifference( o );
+			
+			if ( d < bestDifference )
+			{
+				offset = o;
+				bestDifference = d;
+			}
+		}
+		
+		if ( out != null )
+			out.println( "Coarse offset: " + offset + " (" + bestDifference + ")" );
+		
+		return search( offset, bestDifference, Alignment.computeSteps( 2, stepSize, minPrecision ), out );
+	}
+	
+	protected float search( float offset, float bestDifference, final float[] steps, final PrintWriter out )
+	{
+		for ( final float step : steps )
+		{
+			boolean foundBetter = false;
+			
+			do
+			{
+				foundBetter = false;
+				
+				// try + and - current step
+				final float d1 = computeDifference( offset - step );
+				final float d2 = computeDifference( offset + step );
+	
+				if ( out != null )
+				{
+					out.print( -step + " (" + offset + "): " + bestDifference + " <<< " + d1 );
+					
+					if ( d1 < bestDifference && d1 < d2 )
+						out.println( " <--" );
+					else
+						out.println( "" );
+					
+					out.print( "+" + step + " (" + offset + "): " + bestDifference + " >>> " + d2 );
+		
+					if ( d2 < bestDifference && d2 <= d1 )
+						out.println( " <--" );
+					else
+						out.println( "" );
+				}
+				
+				if ( d1 < bestDifference || d2 < bestDifference )
+				{
+					foundBetter = true;
+					
+					if ( d1 < d2 )
+					{
+						offset -= step;
+						bestDifference = d1;
+					}
+					else
+					{
+						offset += step;
+						bestDifference = d2;						
+					}
+				}			
+			}
+			while( foundBetter );
+		}
+		
+		if ( out != null )
+			out.println( "Final offset: " + offset + " (" + bestDifference + ")" );
+		
+		return offset;
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+/**
+ * The offsets of all ordered pairs of 1d-curves, offsets[ a ][ b ] is the offset of curve b relative to curve a.
+ * Matchers that compute a confidence for each pair (e.g. the normalized cross-correlation) store it in confidences,
+ * otherwise it is null.
+ * 
+ * @author preibischs
+ *
+ */
+public class PairwiseOffsets 
+{
+	final public float[][] offsets;
+	final public float[][] confidences;
+	
+	public PairwiseOffsets( final float[][] offsets, final float[][] confidences )
+	{
+		this.offsets = offsets;
+		this.confidences = confidences;
+	}
+	
+	public int getNumCurves() { return offsets.length; }
+	public boolean hasConfidences() { return confidences != null; }
+}
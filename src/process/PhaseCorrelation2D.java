@@ -0,0 +1,308 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+import java.util.ArrayList;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * Estimates the translation between two 2d-images of the same size by phase correlation. The phase correlation matrix
+ * is ambiguous because of the periodicity of the fft, so for the highest peaks all possible translations are tested 
+ * by computing the normalized cross-correlation of the overlapping area; the best one is refined to sub-pixel 
+ * precision by fitting a parabola through the peak and its neighbors in x and y.
+ * 
+ * The translation (dx, dy) means that pixel (x, y) of the reference corresponds to (x + dx, y + dy) in the template.
+ * 
+ * @author preibischs
+ *
+ */
+public class PhaseCorrelation2D 
+{
+	/**
+	 * An image together with its fourier transform, it can be reused for all pairs it is part of.
+	 */
+	public static class Spectrum
+	{
+		final int width, height, fftWidth, fftHeight;
+		final float[] pixels;
+		final double[] re, im;
+		
+		public Spectrum( final Image< FloatType > image )
+		{
+			this( Alignment.getArray( image ), image.getDimension( 0 ), image.getDimension( 1 ) );
+		}
+		
+		/**
+		 * @param pixels - the image
+		 * @param width - width of the image
+		 * @param height - height of the image
+		 */
+		public Spectrum( final float[] pixels, final int width, final int height )
+		{
+			this.width = width;
+			this.height = height;
+			this.pixels = pixels;
+			this.fftWidth = FFT1D.nextPowerOfTwo( width );
+			this.fftHeight = FFT1D.nextPowerOfTwo( height );
+			this.re = new double[ fftWidth * fftHeight ];
+			this.im = new double[ fftWidth * fftHeight ];
+			
+			// subtract the mean so that the zero padding does not create an edge
+			double mean = 0;
+			for ( final float v : pixels )
+				mean += v;
+			mean /= pixels.length;
+			
+			for ( int y = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x )
+					re[ y * fftWidth + x ] = pixels[ y * width + x ] - mean;
+			
+			transform( re, im, fftWidth, fftHeight, false );
+		}
+		
+		public int getWidth() { return width; }
+		public int getHeight() { return height; }
+	}
+	
+	/**
+	 * Separable 2d-fft using {@link FFT1D} on all rows and columns.
+	 */
+	public static void transform( final double[] re, final double[] im, final int width, final int height, final boolean inverse )
+	{
+		final double[] lineRe = new double[ Math.max( width, height ) ];
+		final double[] lineIm = new double[ Math.max( width, height ) ];
+		
+		final double[] rowRe = width == lineRe.length ? lineRe : new double[ width ];
+		final double[] rowIm = width == lineIm.length ? lineIm : new double[ width ];
+		
+		for ( int y = 0; y < height; ++y )
+		{
+			System.arraycopy( re, y * width, rowRe, 0, width );
+			System.arraycopy( im, y * width, rowIm, 0, width );
+			
+			FFT1D.transform( rowRe, rowIm, inverse );
+			
+			System.arraycopy( rowRe, 0, re, y * width, width );
+			System.arraycopy( rowIm, 0, im, y * width, width );
+		}
+		
+		final double[] colRe = height == lineRe.length ? lineRe : new double[ height ];
+		final double[] colIm = height == lineIm.length ? lineIm : new double[ height ];
+		
+		for ( int x = 0; x < width; ++x )
+		{
+			for ( int y = 0; y < height; ++y )
+			{
+				colRe[ y ] = re[ y * width + x ];
+				colIm[ y ] = im[ y * width + x ];
+			}
+			
+			FFT1D.transform( colRe, colIm, inverse );
+			
+			for ( int y = 0; y < height; ++y )
+			{
+				re[ y * width + x ] = colRe[ y ];
+				im[ y * width + x ] = colIm[ y ];
+			}
+		}
+	}
+	
+	/**
+	 * @param reference - the reference image
+	 * @param template - the image to align, same size as the reference
+	 * @param numPeaks - how many peaks of the phase correlation matrix to test
+	 * @param minOverlap - the minimal overlapping fraction of the image for a translation to be tested 
+	 * @return - the translation and the confidence, null if no translation has enough overlap
+	 */
+	public static PhaseCorrelationPeak align( final Spectrum reference, final Spectrum template, final int numPeaks, final double minOverlap )
+	{
+		if ( reference.width != template.width || reference.height != template.height )
+			throw new IllegalArgumentException( "Images must have the same size: " + reference.width + "x" + reference.height + " != " + template.width + "x" + template.height );
+		
+		final int w = reference.fftWidth;
+		final int h = reference.fftHeight;
+		final int n = w * h;
+		
+		// normalized cross power spectrum, its inverse peaks at -(dx, dy)
+		final double[] re = new double[ n ];
+		final double[] im = new double[ n ];
+		
+		for ( int i = 0; i < n; ++i )
+		{
+			final double pr = reference.re[ i ] * template.re[ i ] + reference.im[ i ] * template.im[ i ];
+			final double pi = reference.im[ i ] * template.re[ i ] - reference.re[ i ] * template.im[ i ];
+			final double length = Math.sqrt( pr * pr + pi * pi );
+			
+			if ( length > 0 )
+			{
+				re[ i ] = pr / length;
+				im[ i ] = pi / length;
+			}
+		}
+		
+		transform( re, im, w, h, true );
+		
+		// test all translations that are possible for the highest peaks
+		PhaseCorrelationPeak best = null;
+		int bestPeakX = 0, bestPeakY = 0;
+		
+		for ( final int peak : findPeaks( re, w, h, numPeaks ) )
+		{
+			final int px = peak % w;
+			final int py = peak / w;
+			
+			for ( int sx = px - w; sx <= px; sx += w )
+				for ( int sy = py - h; sy <= py; sy += h )
+				{
+					final int dx = -sx;
+					final int dy = -sy;
+					
+					final int overlapW = reference.width - Math.abs( dx );
+					final int overlapH = reference.height - Math.abs( dy );
+					
+					if ( overlapW <= 0 || overlapH <= 0 || (double)overlapW * overlapH < minOverlap * reference.width * reference.height )
+						continue;
+					
+					final float r = correlate( reference, template, dx, dy );
+					
+					if ( best == null || r > best.confidence )
+					{
+						best = new PhaseCorrelationPeak( dx, dy, r );
+						bestPeakX = px;
+						bestPeakY = py;
+					}
+				}
+		}
+		
+		if ( best == null )
+			return null;
+		
+		// sub-pixel refinement, the peak is at -(dx, dy)
+		best.dx -= subpixel( re[ bestPeakY * w + ( bestPeakX + w - 1 ) % w ], re[ bestPeakY * w + bestPeakX ], re[ bestPeakY * w + ( bestPeakX + 1 ) % w ] );
+		best.dy -= subpixel( re[ ( ( bestPeakY + h - 1 ) % h ) * w + bestPeakX ], re[ bestPeakY * w + bestPeakX ], re[ ( ( bestPeakY + 1 ) % h ) * w + bestPeakX ] );
+		
+		return best;
+	}
+	
+	/**
+	 * @return - the indices of the highest local maxima (8-neighborhood, periodic), highest first
+	 */
+	protected static int[] findPeaks( final double[] pcm, final int w, final int h, final int numPeaks )
+	{
+		final ArrayList< Integer > peaks = new ArrayList< Integer >();
+		
+		for ( int y = 0; y < h; ++y )
+			for ( int x = 0; x < w; ++x )
+			{
+				final double v = pcm[ y * w + x ];
+				boolean isMax = true;
+				
+				for ( int dy = -1; dy <= 1 && isMax; ++dy )
+					for ( int dx = -1; dx <= 1; ++dx )
+						if ( ( dx != 0 || dy != 0 ) && pcm[ ( ( y + dy + h ) % h ) * w + ( x + dx + w ) % w ] > v )
+						{
+							isMax = false;
+							break;
+						}
+				
+				if ( !isMax )
+					continue;
+				
+				// insert sorted, keep only the highest numPeaks
+				int i = peaks.size();
+				while ( i > 0 && pcm[ peaks.get( i - 1 ) ] < v )
+					--i;
+				
+				if ( i < numPeaks )
+				{
+					peaks.add( i, y * w + x );
+					
+					if ( peaks.size() > numPeaks )
+						peaks.remove( numPeaks );
+				}
+			}
+		
+		final int[] result = new int[ peaks.size() ];
+		for ( int i = 0; i < result.length; ++i )
+			result[ i ] = peaks.get( i );
+		
+		return result;
+	}
+	
+	/**
+	 * @return - the normalized cross-correlation of the overlapping area for an integer translation
+	 */
+	public static float correlate( final Spectrum reference, final Spectrum template, final int dx, final int dy )
+	{
+		final int width = reference.width;
+		
+		final int x0 = Math.max( 0, -dx );
+		final int x1 = Math.min( width, reference.width - dx );
+		final int y0 = Math.max( 0, -dy );
+		final int y1 = Math.min( reference.height, reference.height - dy );
+		
+		final double n = (double)( x1 - x0 ) * ( y1 - y0 );
+		
+		if ( n <= 1 )
+			return -1;
+		
+		double sumA = 0, sumB = 0, sumAA = 0, sumBB = 0, sumAB = 0;
+		
+		for ( int y = y0; y < y1; ++y )
+		{
+			final int offsetA = y * width;
+			final int offsetB = ( y + dy ) * width + dx;
+			
+			for ( int x = x0; x < x1; ++x )
+			{
+				final double a = reference.pixels[ offsetA + x ];
+				final double b = template.pixels[ offsetB + x ];
+				
+				sumA += a;
+				sumB += b;
+				sumAA += a * a;
+				sumBB += b * b;
+				sumAB += a * b;
+			}
+		}
+		
+		final double varA = sumAA - sumA * sumA / n;
+		final double varB = sumBB - sumB * sumB / n;
+		
+		if ( varA <= 0 || varB <= 0 )
+			return 0;
+		
+		return (float)( ( sumAB - sumA * sumB / n ) / Math.sqrt( varA * varB ) );
+	}
+	
+	/**
+	 * @return - the position of the extremum of the parabola through the three values relative to the center
+	 */
+	protected static float subpixel( final double left, final double center, final double right )
+	{
+		final double denominator = left - 2 * center + right;
+		
+		if ( denominator == 0 )
+			return 0;
+		
+		return (float)Math.max( -0.5, Math.min( 0.5, 0.5 * ( left - right ) / denominator ) );
+	}
+}
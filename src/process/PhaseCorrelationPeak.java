@@ -0,0 +1,39 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+/**
+ * The result of a 2d-phase correlation: the sub-pixel translation of the template relative to the reference and the
+ * normalized cross-correlation of the overlapping area at that translation, which serves as confidence (-1...1).
+ * 
+ * @author preibischs
+ *
+ */
+public class PhaseCorrelationPeak 
+{
+	public float dx, dy;
+	public float confidence;
+	
+	public PhaseCorrelationPeak( final float dx, final float dy, final float confidence )
+	{
+		this.dx = dx;
+		this.dy = dy;
+		this.confidence = confidence;
+	}
+}
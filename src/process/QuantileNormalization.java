@@ -18,12 +18,6 @@
  */
 package process;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-
-import mpicbg.imglib.cursor.LocalizableByDimCursor;
-import mpicbg.imglib.cursor.LocalizableCursor;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.type.numeric.real.FloatType;
 
@@ -35,33 +29,29 @@ import mpicbg.imglib.type.numeric.real.FloatType;
  */
 public class QuantileNormalization 
 {
+	/**
+	 * Quantile normalization of the template to the reference, see {@link QuantileNormalizer} to normalize several
+	 * templates to the same reference.
+	 */
 	public static void normalizeTo( final Image< FloatType > reference, final Image< FloatType > template )
 	{
-		final float[] values = new float[ reference.getNumPixels() ];
-		
-		int i = 0;
-		for ( final FloatType t : reference )
-			values[ i++ ] = t.get();
-		
-		Arrays.sort( values );
-		
-		final ArrayList< ValuePosition > templateList = new ArrayList< ValuePosition >();	
-		final LocalizableCursor< FloatType > cursor = template.createLocalizableCursor();
+		final float[] values = getValues( template );
 		
-		while ( cursor.hasNext() )
-		{
-			cursor.fwd();
-			templateList.add( new ValuePosition( cursor.getType().get(), cursor.getPosition() ) );
-		}
+		new QuantileNormalizer( getValues( reference ) ).normalize( values );
 		
-		Collections.sort( templateList );
+		int i = 0;
+		for ( final FloatType t : template )
+			t.set( values[ i++ ] );
+	}
+	
+	protected static float[] getValues( final Image< FloatType > image )
+	{
+		final float[] values = new float[ image.getNumPixels() ];
 		
-		final LocalizableByDimCursor< FloatType > randomAccess = template.createLocalizableByDimCursor();
+		int i = 0;
+		for ( final FloatType t : image )
+			values[ i++ ] = t.get();
 		
-		for ( i = 0; i < values.length; ++i )
-		{
-			randomAccess.setPosition( templateList.get( i ).position );
-			randomAccess.getType().set( values[ i ] );
-		}
+		return values;
 	}
 }
@@ -0,0 +1,80 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package process;
+
+import java.util.Arrays;
+
+/**
+ * Quantile normalization to a fixed reference that works directly on the float arrays. The reference is sorted
+ * only once when the {@link QuantileNormalizer} is created, the buffer used to sort the template is reused for
+ * every call of {@link #normalize(float[])}, so no objects are created per pixel.
+ * 
+ * The result is identical to {@link QuantileNormalization}: pixels of the template with the same value keep their order. An instance must not be used by several threads at the same time.
+ * 
+ * @author preibischs
+ *
+ */
+public class QuantileNormalizer 
+{
+	final float[] reference;
+	final long[] keys;
+	
+	/**
+	 * @param reference - the pixels of the reference, they are copied
+	 */
+	public QuantileNormalizer( final float[] reference )
+	{
+		this.reference = reference.clone();
+		this.keys = new long[ reference.length ];
+		
+		Arrays.sort( this.reference );
+	}
+	
+	public int getNumPixels() { return reference.length; }
+	
+	/**
+	 * Replaces the values of the template by the values of the reference with the same rank.
+	 * 
+	 * @param template - the pixels, must have the same size as the reference
+	 */
+	public void normalize( final float[] template )
+	{
+		if ( template.length != reference.length )
+			throw new IllegalArgumentException( "Template has " + template.length + " pixels, the reference " + reference.length + "." );
+		
+		// the upper 32 bits sort by value, the lower 32 bits keep the original order of equal values
+		for ( int i = 0; i < template.length; ++i )
+			keys[ i ] = ( (long)sortableBits( template[ i ] ) << 32 ) | i;
+		
+		Arrays.sort( keys );
+		
+		for ( int i = 0; i < keys.length; ++i )
+			template[ (int)keys[ i ] ] = reference[ i ];
+	}
+	
+	/**
+	 * Maps a float to an int that has the same order, -0 and 0 are considered equal (as in {@link ValuePosition}).
+	 */
+	protected static int sortableBits( final float value )
+	{
+		final int bits = Float.floatToIntBits( value == 0 ? 0 : value );
+		
+		return bits ^ ( ( bits >> 31 ) & 0x7fffffff );
+	}
+}
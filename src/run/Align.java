@@ -22,9 +22,10 @@ import ij.CompositeImage;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.io.FileSaver;
 import ij.process.FloatProcessor;
 import io.ExtractPlane;
+import io.GratingGeometry;
+import io.HyperStackTiffWriter;
 
 import java.io.File;
 import java.io.FilenameFilter;
@@ -32,6 +33,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.imglib.container.array.Array;
 import mpicbg.imglib.container.array.ArrayContainerFactory;
@@ -42,6 +44,7 @@ import mpicbg.imglib.image.display.imagej.ImageJFunctions;
 import mpicbg.imglib.interpolation.InterpolatorFactory;
 import mpicbg.imglib.interpolation.linear.LinearInterpolatorFactory;
 import mpicbg.imglib.io.ImageOpener;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyFactory;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyValueFactory;
@@ -50,11 +53,14 @@ import mpicbg.models.AbstractAffineModel2D;
 import mpicbg.models.AbstractModel;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.RigidModel2D;
+import process.AffineResampler2D;
+import process.Alignment;
 import process.AvgProjection3;
 import process.CrossCorrelation;
 import process.Mirror;
 import process.OverlayFusion;
-import process.QuantileNormalization;
+import process.QuantileNormalizer;
+import run.ChannelDescription.Role;
 import run.MicroscopyPlane.Mirroring;
 
 /**
@@ -65,9 +71,6 @@ import run.MicroscopyPlane.Mirroring;
  */
 public class Align 
 {
-	public static final PrintWriter outAllZ = null;//TextFileAccess.openFileWrite( "/Volumes/TOSHIBA EXT/3D analysis files/alloutZ.txt" );
-	public static final PrintWriter outAllXY = null;//TextFileAccess.openFileWrite( "/Volumes/TOSHIBA EXT/3D analysis files/alloutXY.txt" );
-	
 	/**
 	 * Will create a hyperstack with the following properties
 	 * 
@@ -81,17 +84,103 @@ public class Align
 	{
 		final ImageStack stack = new ImageStack( planes.get( 0 ).getImage().getDimension( 0 ), planes.get( 0 ).getImage().getDimension( 1 ) );
 
+		// create the hyperstack
+		final int numImages = planes.get( 0 ).getImage().getDimension( 2 );
+		final int numSlices = AlignProperties.grating.getNumTiles();
+		final int numChannels = planes.size() / numSlices;
+		
+		final int[] size = new int[]{ planes.get( 0 ).getImage().getDimension( 0 ), planes.get( 0 ).getImage().getDimension( 1 ) };
+		
+		// affine models are applied together with the z-shift in one pass, without changing the images of the planes
+		boolean direct = true;
+		for ( final MicroscopyPlane plane : planes )
+			direct &= AffineResampler2D.isSupported( plane.getImage(), plane.getXYModel() );
+		
+		final float[][] slices;
+		
+		if ( direct )
+			slices = resampleAligned( planes, numImages, numSlices, numChannels, AlignProperties.numThreads );
+		else
+			slices = fuseAndResampleAligned( planes, numImages, numSlices, numChannels );
+		
+		for ( int t = 0; t < numImages; ++t )
+			for ( int z = 0; z < numSlices; ++z )
+				for ( int c = 0; c < numChannels; ++c )
+				{
+					final MicroscopyPlane plane = planes.get( z + numSlices*c );
+					final int j = ( t * numSlices + z ) * numChannels + c;
+					
+					stack.addSlice( plane.getFullName() + "_tile=" + plane.tileNumber + "_slice=" + t, new FloatProcessor( size[ 0 ], size[ 1 ], slices[ j ] ) );
+				}
+		
+		//convertXYZCT ...
+		ImagePlus result = new ImagePlus( "registered", stack );
+				
+		result.setDimensions( numChannels, numSlices, numImages );		
+		//result = OverlayFusion.switchZCinXYCZT( result );
+		return new CompositeImage( result, CompositeImage.COMPOSITE );
+	}
+
+	/**
+	 * Computes the slices of {@link #showAlignedImages(ArrayList)} in xyczt-order, applying the z-shift and the 
+	 * xy-model of each plane in one trilinear pass ({@link AffineResampler2D#resampleSlice(float[], int, int, int, double[], double, float[])}).
+	 * The slices are distributed over several threads.
+	 */
+	protected static float[][] resampleAligned( final ArrayList< MicroscopyPlane > planes, final int numImages, final int numSlices, final int numChannels, final int numThreads )
+	{
+		final int numJobs = numImages * numSlices * numChannels;
+		final float[][] slices = new float[ numJobs ][];
+		
+		final double[][] inverse = new double[ planes.size() ][];
+		for ( int i = 0; i < planes.size(); ++i )
+			inverse[ i ] = AffineResampler2D.getInverse( (AbstractAffineModel2D<?>)planes.get( i ).getXYModel() );
+		
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numJobs ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int j = ai.getAndIncrement(); j < numJobs; j = ai.getAndIncrement() )
+					{
+						final int c = j % numChannels;
+						final int z = ( j / numChannels ) % numSlices;
+						final int t = j / ( numChannels * numSlices );
+						
+						// which plane?
+						final int index = z + numSlices*c;
+						
+						final MicroscopyPlane plane = planes.get( index );
+						final Image< FloatType > img = plane.getImage();
+						final float[] pixels = new float[ img.getDimension( 0 ) * img.getDimension( 1 ) ];
+						
+						// the t'th piezo section, shifted in z
+						AffineResampler2D.resampleSlice( Alignment.getArray( img ), img.getDimension( 0 ), img.getDimension( 1 ), img.getDimension( 2 ), inverse[ index ], t - plane.getModel().tx, pixels );
+						
+						slices[ j ] = pixels;
+					}
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		return slices;
+	}
+	
+	/**
+	 * Computes the slices of {@link #showAlignedImages(ArrayList)} in xyczt-order for models that are not supported by
+	 * the {@link AffineResampler2D}: the models are applied to the images of the planes, then they are interpolated in z.
+	 */
+	protected static float[][] fuseAndResampleAligned( final ArrayList< MicroscopyPlane > planes, final int numImages, final int numSlices, final int numChannels )
+	{
 		// apply the model to the images
 		for ( final MicroscopyPlane plane : planes )
 		{
 			final Image< FloatType > img = plane.getImage();			
 			OverlayFusion.fuseChannel( img, img.clone(), new float[ img.getNumDimensions() ], plane.getXYModel(), new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
 		}
-
-		// create the hyperstack
-		final int numImages = planes.get( 0 ).getImage().getDimension( 2 );
-		final int numChannels = 2;
-		final int numSlices = AlignProperties.numTiles;
 		
 		final int[] size = new int[]{ planes.get( 0 ).getImage().getDimension( 0 ), planes.get( 0 ).getImage().getDimension( 1 ) };
 		final ImageFactory< FloatType > factory = planes.get( 0 ).getImage().getImageFactory();
@@ -99,6 +188,8 @@ public class Align
 		final OutOfBoundsStrategyFactory< FloatType > oobs = new OutOfBoundsStrategyValueFactory<FloatType>();
 		final InterpolatorFactory< FloatType > interpolatorF = new LinearInterpolatorFactory<FloatType>( oobs );
 		
+		final float[][] slices = new float[ numImages * numSlices * numChannels ][];
+		
 		for ( int t = 0; t < numImages; ++t )
 		{
 			for ( int z = 0; z < numSlices; ++z )
@@ -115,28 +206,21 @@ public class Align
 					final Image< FloatType > planeTmp = factory.createImage( size );
 					
 					// extract the t'th piezo section
-					//CrossCorrelation.extractPlane( img, planeTmp, t );
 					CrossCorrelation.extractPlane( img.createInterpolator( interpolatorF ), planeTmp, t - plane.getModel().tx );
 					
-					final float[] pixels = ((FloatArray)((Array)planeTmp.getContainer()).update( null )).getCurrentStorageArray();
-					stack.addSlice( plane.getFullName() + "_tile=" + plane.tileNumber + "_slice=" + t, new FloatProcessor( size[ 0 ], size[ 1 ], pixels ) );
+					slices[ ( t * numSlices + z ) * numChannels + c ] = ((FloatArray)((Array)planeTmp.getContainer()).update( null )).getCurrentStorageArray();
 				}
 			}
 		}
 		
-		//convertXYZCT ...
-		ImagePlus result = new ImagePlus( "registered", stack );
-				
-		result.setDimensions( numChannels, numSlices, numImages );		
-		//result = OverlayFusion.switchZCinXYCZT( result );
-		return new CompositeImage( result, CompositeImage.COMPOSITE );
+		return slices;
 	}
 
 	public static CompositeImage showAlignedProjections( final ArrayList< MicroscopyPlane > planes )
 	{
 		ImageStack stack = new ImageStack( planes.get( 0 ).getAvgProj().getDimension( 0 ), planes.get( 0 ).getAvgProj().getDimension( 1 ) );
-		final int numChannels = 2;
-		final int numSlices = AlignProperties.numTiles;
+		final int numSlices = AlignProperties.grating.getNumTiles();
+		final int numChannels = planes.size() / numSlices;
 
 		for ( int z = 0; z < numSlices; ++z )
 		{
@@ -154,194 +238,334 @@ public class Align
 		}
 
 		ImagePlus result = new ImagePlus( "registered", stack );
-		result.setDimensions( 2, AlignProperties.numTiles, 1 );
+		result.setDimensions( numChannels, numSlices, 1 );
 		
 		return new CompositeImage( result, CompositeImage.COMPOSITE );
 	}
 	
-	public static CompositeImage createFinalImages( 
+	/**
+	 * Loads, corrects and aligns the target images once and creates all three output hyperstacks from them: the raw
+	 * aligned images, the images corrected by the average intensity of the brightest pixels and the corrected images
+	 * after quantile normalization. Every slice is written to disk as soon as it is computed, so the output hyperstacks
+	 * are never held in memory. Loading, dark count subtraction, mirroring and tile extraction run as one parallel pass 
+	 * per export channel, then the tiles of all channels are fused in parallel (see {@link #fuseAll(MicroscopyPlane[], ArrayList, int, int)}).
+	 * 
+	 * @param planes - the aligned planes of the registration channels (channel by channel, tile by tile)
+	 * @param channels - the export channels, see {@link ChannelDescription}
+	 * @param target - the image file of each export channel (relative to baseDir)
+	 * @param outputs - the files for { raw, avgcorrected, avgcorrected + quantile }
+	 */
+	public static void createFinalImages( 
 						final ArrayList< MicroscopyPlane > planes, 
 						final String baseDir, 
+						final ArrayList< ChannelDescription > channels,
 						final String[] target,
-						final String[] darkCountFileNames,
-						final Mirroring[] mirror,
-						final boolean adjust, final boolean quantile ) throws Exception, IOException
+						final File[] outputs ) throws Exception, IOException
 	{
-		final File t1 = new File( baseDir, target[ 0 ] );
-		final File t2 = new File( baseDir, target[ 1 ] );
-		final File t3 = new File( baseDir, target[ 2 ] );
+		final GratingGeometry grating = AlignProperties.grating;
+		final int numTiles = grating.getNumTiles();
+		final int center = grating.getCenterTile();
+		final int numChannels = channels.size();
 		
-		System.out.println( t1.getAbsolutePath() );
-		System.out.println( t2.getAbsolutePath() );
-		System.out.println( t3.getAbsolutePath() );
-			
-		final Image< FloatType > img1 = new ImageOpener().openImage( t1.getAbsolutePath(), new ImageFactory<FloatType>( new FloatType(), new ArrayContainerFactory() ) );
-		final Image< FloatType > img2 = new ImageOpener().openImage( t2.getAbsolutePath(), new ImageFactory<FloatType>( new FloatType(), new ArrayContainerFactory() ) );
-		final Image< FloatType > img3 = new ImageOpener().openImage( t3.getAbsolutePath(), new ImageFactory<FloatType>( new FloatType(), new ArrayContainerFactory() ) );
+		// the planes of all export channels, channel by channel
+		final MicroscopyPlane[] exportPlanes = new MicroscopyPlane[ numChannels * numTiles ];
+		final int[] numTimepointsPerChannel = new int[ numChannels ];
+		final Exception[] failed = new Exception[ numChannels ];
 		
-		if ( MicroscopyPlane.subtractDarkCount( img1, darkCountFileNames[ 0 ] ) )
-			System.out.println( "SUBTRACTED darkcount image '" + darkCountFileNames[ 0 ] + "' from '" + target[ 0 ] + "'" );
-		else
-			System.out.println( "NOT FOUND Darkcount image '" + darkCountFileNames[ 0 ] + "'" );
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( AlignProperties.numThreads, numChannels ) ) );
 		
-		if ( MicroscopyPlane.subtractDarkCount( img2, darkCountFileNames[ 1 ] ) )
-			System.out.println( "SUBTRACTED darkcount image '" + darkCountFileNames[ 1 ] + "' from '" + target[ 1 ] + "'" );
-		else
-			System.out.println( "NOT FOUND Darkcount image '" + darkCountFileNames[ 1 ] + "'" );
-
-		if ( MicroscopyPlane.subtractDarkCount( img3, darkCountFileNames[ 2 ] ) )
-			System.out.println( "SUBTRACTED darkcount image '" + darkCountFileNames[ 2 ] + "' from '" + target[ 2 ] + "'" );
-		else
-			System.out.println( "NOT FOUND Darkcount image '" + darkCountFileNames[ 2 ] + "'" );
-
-		if ( mirror[ 0 ] == Mirroring.HORIZONTALLY )
-			Mirror.horizontal( img1 );
-		if ( mirror[ 1 ] == Mirroring.HORIZONTALLY )
-			Mirror.horizontal( img2 );
-		if ( mirror[ 2 ] == Mirroring.HORIZONTALLY )
-			Mirror.horizontal( img3 );
-		
-		// extract all planes and overwrite them in the planes ArrayList
-		for ( int i = 0; i < 9; ++i )
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int c = ai.getAndIncrement(); c < numChannels; c = ai.getAndIncrement() )
+					{
+						try
+						{
+							numTimepointsPerChannel[ c ] = loadExportChannel( planes, baseDir, channels.get( c ), target[ c ], exportPlanes, c * numTiles );
+						}
+						catch ( Exception e )
+						{
+							failed[ c ] = e;
+						}
+					}
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		for ( int c = 0; c < numChannels; ++c )
+			if ( failed[ c ] != null )
+				throw failed[ c ];
+		
+		// align all tiles of all channels
+		fuseAll( exportPlanes, channels, numTiles, AlignProperties.numThreads );
+		
+		// the timepoints of the export channels, projection channels are the same for every timepoint
+		int numTimepoints = Integer.MAX_VALUE;
+		for ( int c = 0; c < numChannels; ++c )
+			if ( channels.get( c ).getRole() == Role.EXPORT )
+				numTimepoints = Math.min( numTimepoints, numTimepointsPerChannel[ c ] );
+		
+		if ( numTimepoints == Integer.MAX_VALUE )
+			numTimepoints = 1;
+		
+		// the intensity correction factor of each plane relative to the center tile of its channel (the planes are not changed)
+		final float[] adjust = new float[ numChannels * numTiles ];
+		
+		for ( int c = 0; c < numChannels; ++c )
 		{
-			final MicroscopyPlane plane1 = planes.get( i );
-			final MicroscopyPlane plane2 = planes.get( i + 9 );
-			
-			final MicroscopyPlane plane3 = new MicroscopyPlane( plane1.getBaseDirectory(), target[ 2 ], plane1.tag, null, mirror[ 2 ], i );
+			if ( channels.get( c ).getRole() != Role.EXPORT )
+				continue;
 			
-			plane1.tag = target[ 0 ];
-			plane2.tag = target[ 1 ];
-			plane1.darkCountImageName = null;
-			plane2.darkCountImageName = null;
-			plane1.localDir = "";
-			plane2.localDir = "";
+			final double avg = CrossCorrelation.avg10( exportPlanes[ c * numTiles + center ].getImage() );
 			
-			plane1.setImage( ExtractPlane.extract( img1, i ) );
-			plane2.setImage( ExtractPlane.extract( img2, i ) );
-			plane3.setImage( ExtractPlane.extract( img3, i ) );
-			
-			// set the alignment of plane1
-			plane3.setXYModel( ((InvertibleBoundable)((AbstractAffineModel2D)plane1.getXYModel()).copy()) );
-			
-			// apply the model to the images
-			Image< FloatType > img = plane1.getImage();
-			OverlayFusion.fuseChannel( img, img.clone(), new float[ img.getNumDimensions() ], plane1.getXYModel(), new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
-			img = plane2.getImage();
-			OverlayFusion.fuseChannel( img, img.clone(), new float[ img.getNumDimensions() ], plane2.getXYModel(), new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
-			img = plane3.getImage();
-			OverlayFusion.fuseChannel( img, img.clone(), new float[ img.getNumDimensions() ], plane3.getXYModel(), new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
-			
-			// compute the average projection of plane3
-			final Image< FloatType > planeImg = AvgProjection3.project( plane3.getImage() );
-			plane3.setAvgProj( planeImg );
-			
-			planes.add( plane3 );
+			for ( int i = 0; i < numTiles; ++i )
+				adjust[ c * numTiles + i ] = (float)( avg / CrossCorrelation.avg10( exportPlanes[ c * numTiles + i ].getImage() ) );
 		}
 		
-		if ( adjust )
+		final int numSlices = numTiles;
+		
+		final int[] size = new int[]{ exportPlanes[ 0 ].getImage().getDimension( 0 ), exportPlanes[ 0 ].getImage().getDimension( 1 ) };
+		final ImageFactory< FloatType > factory = exportPlanes[ 0 ].getImage().getImageFactory();
+		
+		// the references for the quantile normalization are the intensity corrected 5'th piezo sections, sorted once per plane
+		final QuantileNormalizer[] ref = new QuantileNormalizer[ numChannels * numTiles ];
+		
+		for ( int z = 0; z < numSlices; ++z )
 		{
-			// extract all planes and overwrite them in the planes ArrayList
-			final double avg1 = CrossCorrelation.avg10( planes.get( 4 ).getImage() );
-			final double avg2 = CrossCorrelation.avg10( planes.get( 4 + 9 ).getImage() );
-			final double avg3 = CrossCorrelation.avg10( planes.get( 4 + 18 ).getImage() );
-			
-			for ( int i = 0; i < 9; ++i )
+			// fuse
+			for ( int c = 0; c < numChannels; ++c )
 			{
-				final MicroscopyPlane plane1 = planes.get( i );
-				final MicroscopyPlane plane2 = planes.get( i + 9 );			
-				final MicroscopyPlane plane3 = planes.get( i + 18 );
+				if ( channels.get( c ).getRole() != Role.EXPORT )
+					continue;
+				
+				// which plane?
+				final int index = z + numSlices*c;
 				
-				final double diff1 = avg1 / CrossCorrelation.avg10( plane1.getImage() );
-				final double diff2 = avg2 / CrossCorrelation.avg10( plane2.getImage() );
-				final double diff3 = avg3 / CrossCorrelation.avg10( plane3.getImage() );
+				final MicroscopyPlane plane = exportPlanes[ index ];
+				final Image< FloatType > img = plane.getImage();
 				
-				for ( final FloatType t : plane1.getImage() )
-					t.set( t.get() * (float)diff1 );
+				// extract the 5'th piezo section
+				final Image< FloatType > planeTmp = factory.createImage( size );
+				CrossCorrelation.extractPlane( img, planeTmp, 4 );
 				
-				for ( final FloatType t : plane2.getImage() )
-					t.set( t.get() * (float)diff2 );
+				final float[] pixels = Alignment.getArray( planeTmp );
 				
-				for ( final FloatType t : plane3.getImage() )
-					t.set( t.get() * (float)diff3 );
+				for ( int i = 0; i < pixels.length; ++i )
+					pixels[ i ] *= adjust[ index ];
+				
+				ref[ index ] = new QuantileNormalizer( pixels );
 			}
 		}
 		
-		final int numTimepoints = img1.getDimension( 2 );
-		final int numSlices = 9;
-		final int numChannels = 3; // mrna, npc, mrna dna
-		final ImageStack stack = new ImageStack( planes.get( 0 ).getImage().getDimension( 0 ), planes.get( 0 ).getImage().getDimension( 1 ) );
+		// every writer that was created is closed, even if creating or closing another one fails
+		final HyperStackTiffWriter[] writers = new HyperStackTiffWriter[ 3 ];
 		
-		final int[] size = new int[]{ planes.get( 0 ).getImage().getDimension( 0 ), planes.get( 0 ).getImage().getDimension( 1 ) };
-		final ImageFactory< FloatType > factory = planes.get( 0 ).getImage().getImageFactory();
-		
-		
-		Image< FloatType >[] ref = null;
-		
-		if ( quantile )
+		try
 		{
-			ref = new Image[ numSlices * 2 ];
+			for ( int i = 0; i < writers.length; ++i )
+				writers[ i ] = new HyperStackTiffWriter( outputs[ i ], size[ 0 ], size[ 1 ], numChannels, numSlices, numTimepoints );
 			
-			for ( int z = 0; z < numSlices; ++z )
+			final HyperStackTiffWriter writerRaw = writers[ 0 ];
+			final HyperStackTiffWriter writerAdjusted = writers[ 1 ];
+			final HyperStackTiffWriter writerQuantile = writers[ 2 ];
+			
+			for ( int t = 0; t < numTimepoints; ++t )
 			{
-				// fuse
-				for ( int c = 0; c < 2; ++c )
+				for ( int z = 0; z < numSlices; ++z )
 				{
-					// which plane?
-					final int index = z + numSlices*c;
-					
-					final MicroscopyPlane plane = planes.get( index );
-					final Image< FloatType > img = plane.getImage();
+					// fuse
+					for ( int c = 0; c < numChannels; ++c )
+					{
+						// which plane?
+						final int index = z + numSlices*c;
 					
-					// extract the 5'th piezo section
-					final Image< FloatType > planeTmp = factory.createImage( size );
-					CrossCorrelation.extractPlane( img, planeTmp, 4 );
+						final MicroscopyPlane plane = exportPlanes[ index ];
+						final Image< FloatType > img = plane.getImage();
 					
-					ref[ index ] = planeTmp;
+						// extract the t'th piezo section
+						if ( channels.get( c ).getRole() == Role.EXPORT_PROJECTION )
+						{
+							// projection channels are always just copied, they are the same in all outputs (the writers copy the pixels)
+							final float[] pixels = Alignment.getArray( plane.getAvgProj() );
+						
+							writerRaw.addSlice( pixels );
+							writerAdjusted.addSlice( pixels );
+							writerQuantile.addSlice( pixels );
+						}
+						else
+						{
+							final Image< FloatType > planeTmp = factory.createImage( size );
+							CrossCorrelation.extractPlane( img, planeTmp, t );
+						
+							final float[] raw = Alignment.getArray( planeTmp );
+							final float[] adjusted = new float[ raw.length ];
+							final float[] quantile = new float[ raw.length ];
+						
+							for ( int i = 0; i < raw.length; ++i )
+								quantile[ i ] = adjusted[ i ] = raw[ i ] * adjust[ index ];
+						
+							ref[ index ].normalize( quantile );
+						
+							writerRaw.addSlice( raw );
+							writerAdjusted.addSlice( adjusted );
+							writerQuantile.addSlice( quantile );
+						}
+					}
 				}
 			}
 		}
+		finally
+		{
+			close( writers, 0 );
+		}
+	}
+	
+	/**
+	 * Closes all writers starting at index i, each one in its own finally block.
+	 */
+	protected static void close( final HyperStackTiffWriter[] writers, final int i ) throws IOException
+	{
+		if ( i >= writers.length )
+			return;
+		
+		try
+		{
+			if ( writers[ i ] != null )
+				writers[ i ].close();
+		}
+		finally
+		{
+			close( writers, i + 1 );
+		}
+	}
+	
+	/**
+	 * Loads the image of one export channel, subtracts the dark counts, mirrors it and extracts all tiles. The planes
+	 * get the models of the registration channel, the models are not applied yet.
+	 * 
+	 * @param planes - the aligned planes of the registration channels
+	 * @param exportPlanes - receives the planes of this channel
+	 * @param offset - where the planes of this channel start in exportPlanes
+	 * @return - the number of timepoints of the channel
+	 */
+	protected static int loadExportChannel( final ArrayList< MicroscopyPlane > planes, final String baseDir, final ChannelDescription channel, final String target, final MicroscopyPlane[] exportPlanes, final int offset ) throws Exception
+	{
+		final GratingGeometry grating = AlignProperties.grating;
+		final int numTiles = grating.getNumTiles();
+		
+		final File file = new File( baseDir, target );
+		System.out.println( file.getAbsolutePath() );
+		
+		final Image< FloatType > img = new ImageOpener().openImage( file.getAbsolutePath(), new ImageFactory<FloatType>( new FloatType(), new ArrayContainerFactory() ) );
+		
+		if ( img == null )
+			throw new IOException( "Could not open '" + file.getAbsolutePath() + "'" );
 		
+		final String darkCount = channel.getDarkCount( baseDir );
 		
-		for ( int t = 0; t < numTimepoints; ++t )
+		if ( MicroscopyPlane.subtractDarkCount( img, darkCount ) )
+			System.out.println( "SUBTRACTED darkcount image '" + darkCount + "' from '" + target + "'" );
+		else
+			System.out.println( "NOT FOUND Darkcount image '" + darkCount + "'" );
+		
+		if ( channel.getMirror() == Mirroring.HORIZONTALLY )
+			Mirror.horizontal( img );
+		
+		// extract all planes, they are aligned like the planes of the registration channel
+		for ( int i = 0; i < numTiles; ++i )
 		{
-			for ( int z = 0; z < numSlices; ++z )
+			final MicroscopyPlane registered = planes.get( channel.getRegistrationChannel() * numTiles + i );
+			final MicroscopyPlane plane = new MicroscopyPlane( baseDir, "", target, null, channel.getMirror(), i );
+			
+			plane.getModel().tx = registered.getModel().tx;
+			plane.setXYModel( ((InvertibleBoundable)((AbstractAffineModel2D)registered.getXYModel()).copy()) );
+			plane.setImage( ExtractPlane.extract( img, i, grating ) );
+			
+			exportPlanes[ offset + i ] = plane;
+		}
+		
+		// all tiles are extracted, the target image is not needed anymore
+		final int numTimepoints = img.getDimension( 2 );
+		img.close();
+		
+		return numTimepoints;
+	}
+	
+	/**
+	 * Applies the xy-model of every plane to its image, affine 2d-models are applied by the {@link AffineResampler2D}. 
+	 * These planes are independent and are distributed over a pool of threads, the destination stack of a plane is
+	 * only allocated right before it is resampled and its source stack is released afterwards. All other models are
+	 * fused one plane after the other by {@link OverlayFusion}, which is multi-threaded itself. For projection 
+	 * channels the avg projection is computed as well.
+	 * 
+	 * @param exportPlanes - the planes of all export channels, channel by channel
+	 * @param channels - the export channels
+	 * @param numTiles - the number of planes per channel
+	 * @param numThreads - how many threads to use
+	 */
+	protected static void fuseAll( final MicroscopyPlane[] exportPlanes, final ArrayList< ChannelDescription > channels, final int numTiles, final int numThreads )
+	{
+		final ArrayList< Integer > direct = new ArrayList< Integer >();
+		final ArrayList< Integer > fallback = new ArrayList< Integer >();
+		
+		for ( int j = 0; j < exportPlanes.length; ++j )
+		{
+			if ( AffineResampler2D.isSupported( exportPlanes[ j ].getImage(), exportPlanes[ j ].getXYModel() ) )
+				direct.add( j );
+			else
+				fallback.add( j );
+		}
+		
+		final int numJobs = direct.size();
+		
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numJobs ) ) );
+		
+		// if there are less planes than threads, the slices of each plane are resampled in parallel as well
+		final int threadsPerJob = Math.max( 1, numThreads / threads.length );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
 			{
-				// fuse
-				for ( int c = 0; c < numChannels; ++c )
+				public void run()
 				{
-					// which plane?
-					final int index = z + numSlices*c;
-					
-					final MicroscopyPlane plane = planes.get( index );
-					final Image< FloatType > img = plane.getImage();
-					
-					final Image< FloatType > planeTmp;
-					
-					// extract the t'th piezo section
-					if ( c == 2 )
-					{
-						// the 3rd channel is always just copied
-						planeTmp = plane.getAvgProj().clone();
-					}
-					else
-					{
-						planeTmp = factory.createImage( size );
-						CrossCorrelation.extractPlane( img, planeTmp, t );
-						
-						if ( quantile )
-							QuantileNormalization.normalizeTo( ref[ index ], planeTmp );
-					}
-					
-					final float[] pixels = ((FloatArray)((Array)planeTmp.getContainer()).update( null )).getCurrentStorageArray();
-					stack.addSlice( plane.getFullName() + "_time=" + t, new FloatProcessor( size[ 0 ], size[ 1 ], pixels ) );
+					for ( int j = ai.getAndIncrement(); j < numJobs; j = ai.getAndIncrement() )
+						fuse( exportPlanes, direct.get( j ), channels, numTiles, threadsPerJob );
 				}
-			}
-		}
-		//ref = ExtractPlane.extract( refGlobal, refIndex );
+			});
 		
-		ImagePlus result = new ImagePlus( "registered", stack );		
-		result.setDimensions( numChannels, numSlices, numTimepoints );
-		return new CompositeImage( result, CompositeImage.COMPOSITE );
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		// OverlayFusion uses all processors itself, running it inside the pool would oversubscribe the CPU
+		for ( final int j : fallback )
+			fuse( exportPlanes, j, channels, numTiles, numThreads );
+	}
+	
+	/**
+	 * Resamples the image of one plane into a newly allocated destination, which replaces the image of the plane.
+	 * 
+	 * @param numThreads - how many threads the {@link AffineResampler2D} may use
+	 */
+	protected static void fuse( final MicroscopyPlane[] exportPlanes, final int j, final ArrayList< ChannelDescription > channels, final int numTiles, final int numThreads )
+	{
+		final MicroscopyPlane plane = exportPlanes[ j ];
+		final Image< FloatType > source = plane.getImage();
+		final Image< FloatType > target = source.createNewImage();
+		
+		if ( AffineResampler2D.isSupported( source, plane.getXYModel() ) && AffineResampler2D.isSupported( target, plane.getXYModel() ) )
+			AffineResampler2D.resample( source, target, (AbstractAffineModel2D<?>)plane.getXYModel(), numThreads );
+		else
+			OverlayFusion.fuseChannel( target, source, new float[ source.getNumDimensions() ], plane.getXYModel(), new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
+		
+		plane.setImage( target );
+		source.close();
+		
+		if ( channels.get( j / numTiles ).getRole() == Role.EXPORT_PROJECTION )
+			plane.setAvgProj( AvgProjection3.project( target ) );
 	}
 
 	public static void findAllDataDirs( final String base, final ArrayList< String > data )
@@ -369,26 +593,101 @@ public class Align
 	}
 	
 	public static void alignAll( final String baseDir, final AbstractModel< ? > model2d ) throws Exception
+	{
+		alignAll( baseDir, model2d, null, null, new MemoryBudget( Long.MAX_VALUE ) );
+	}
+	
+	/**
+	 * Aligns one cell in Z and XY and writes the aligned images into baseDir. Every stage waits until its estimated
+	 * memory fits into the budget, the images of a stage are released as soon as they are not needed anymore. If the
+	 * session already has a calibration that fits this cell (see {@link CalibrationStore}), Z and XY are not aligned again.
+	 * 
+	 * @param baseDir - the directory of the cell
+	 * @param model2d - the model for the XY alignment
+	 * @param outAllZ - additionally writes the z-positions of all planes here, can be null
+	 * @param outAllXY - additionally writes the xy-models of all planes here, can be null
+	 * @param budget - the memory budget shared by all cells that run at the same time
+	 */
+	public static void alignAll( final String baseDir, final AbstractModel< ? > model2d, final PrintWriter outAllZ, final PrintWriter outAllXY, final MemoryBudget budget ) throws Exception
 	{		
 		final String localDir = "DNA stack";
-			
-		final String[] tags = new String[] { "2464" /*green*/, "4283" /*red*/ };
-		final Mirroring[] mirror = new Mirroring[]{ Mirroring.HORIZONTALLY, Mirroring.DONOT };
-
-		final String darkCounts[] = new String[]{ baseDir + "/../Dark Counts/MED_avgstack_DNA_2464 green.tif",
-												   baseDir + "/../Dark Counts/MED_avgstack_DNA_4283 red.tif" }; // can be null
+		
+		final ArrayList< ChannelDescription > registrationChannels = ChannelDescription.getChannels( AlignProperties.channels, Role.REGISTRATION );
+		final ArrayList< ChannelDescription > exportChannels = ChannelDescription.getExportChannels( AlignProperties.channels );
 
 		//
 		// set up the planes
 		// 	
 		final ArrayList< MicroscopyPlane > planes = new ArrayList< MicroscopyPlane >();
 		
-		for ( int c = 0; c < tags.length; ++c )
-			for ( int t = 0; t < AlignProperties.numTiles; ++t )
-				planes.add( new MicroscopyPlane( baseDir, localDir, tags[ c ], darkCounts[ c ], mirror[ c ], t ) );
+		for ( final ChannelDescription channel : registrationChannels )
+			for ( int t = 0; t < AlignProperties.grating.getNumTiles(); ++t )
+				planes.add( new MicroscopyPlane( baseDir, localDir, channel.getTag(), channel.getDarkCount( baseDir ), channel.getMirror(), t ) );
+		
+		// try the calibration of the session first, only align if it does not fit this cell
+		final CalibrationStore calibration = new CalibrationStore( planes, model2d );
+		boolean calibrated = false;
+		
+		if ( AlignProperties.useCalibration )
+		{
+			final long memoryCalibration = MemoryBudget.estimateXY( planes );
+			budget.acquire( memoryCalibration );
+			
+			try
+			{
+				calibrated = calibration.apply( planes, AlignProperties.minCalibrationCorrelation );
+			}
+			finally
+			{
+				budget.release( memoryCalibration );
+			}
+		}
 		
-		AlignZ alignZ = new AlignZ( planes );
-		AlignXY alignXY = new AlignXY( alignZ.getPlanes(), model2d );
+		if ( calibrated )
+		{
+			for ( final MicroscopyPlane plane : planes )
+			{
+				if ( outAllZ != null )
+					outAllZ.println( baseDir + "\t" + plane.getFullName() + "\t" + plane.getTileNumber() + "\t" + plane.getModel().tx );
+				
+				if ( outAllXY != null )
+					outAllXY.println( baseDir + "\t" + plane.getFullName() + "\t" + plane.getXYModel() );
+			}
+			
+			if ( outAllZ != null )
+				outAllZ.flush();
+			if ( outAllXY != null )
+				outAllXY.flush();
+		}
+		else
+		{
+			final long memoryZ = MemoryBudget.estimateZ( planes );
+			budget.acquire( memoryZ );
+			
+			try
+			{
+				new AlignZ( planes, new EntropyProfileCache(), outAllZ );
+			}
+			finally
+			{
+				budget.release( memoryZ );
+			}
+			
+			final long memoryXY = MemoryBudget.estimateXY( planes );
+			budget.acquire( memoryXY );
+			
+			try
+			{
+				new AlignXY( planes, model2d, outAllXY );
+			}
+			finally
+			{
+				budget.release( memoryXY );
+			}
+			
+			if ( AlignProperties.useCalibration )
+				calibration.write( planes );
+		}
 
 		// remove registration
 		//for ( final MicroscopyPlane plane : planes )
@@ -400,31 +699,34 @@ public class Align
 		// apply to the images
 		// showAlignedImages( alignZ.getPlanes() ).show();
 
-		final String greenChannelLarge = findImageFile( new File( baseDir ), "2464", 200*1024*1024, 500*1024*1024 );
-		final String redChannelLarge = findImageFile( new File( baseDir ), "4283", 200*1024*1024, 500*1024*1024 );
-		final String greenChannelDNA = findImageFile( new File( baseDir ), "2464", 5*1024*1024, 15*1024*1024 );
-
-		final String[] target = new String[]{ greenChannelLarge, redChannelLarge, greenChannelDNA };
-		final Mirroring[] mirrorTarget = new Mirroring[]{ Mirroring.HORIZONTALLY, Mirroring.DONOT, Mirroring.HORIZONTALLY };
-
-		final String darkCountsTarget[] = new String[]{ baseDir + "/../Dark Counts/MED_avgstack_mRNA_2464 green.tif",
-														 baseDir + "/../Dark Counts/MED_avgstack_NPC_4283 red.tif",
-														 baseDir + "/../Dark Counts/MED_avgstack_DNA_2464 green.tif" }; // individual can be null or non-existent
+		final String[] target = new String[ exportChannels.size() ];
+		
+		for ( int c = 0; c < target.length; ++c )
+		{
+			final ChannelDescription channel = exportChannels.get( c );
+			target[ c ] = findImageFile( new File( baseDir ), channel.getTag(), channel.getMinFileSize(), channel.getMaxFileSize() );
+		}
 
-		CompositeImage ci = createFinalImages( planes, baseDir, target, darkCountsTarget, mirrorTarget, false, false );
-		FileSaver fs = new FileSaver( ci );
-		fs.saveAsTiffStack( new File( baseDir, "raw_aligned.tif" ).getAbsolutePath() );
-		ci.close();
-		
-		ci = createFinalImages( planes, baseDir, target, darkCountsTarget, mirrorTarget, true, false );
-		fs = new FileSaver( ci );
-		fs.saveAsTiffStack( new File( baseDir, "avgcorrected_aligned.tif" ).getAbsolutePath() );
-		ci.close();
+		// load and align everything once, then write all outputs
+		final File[] outputs = new File[]{
+				new File( baseDir, "raw_aligned.tif" ),
+				new File( baseDir, "avgcorrected_aligned.tif" ),
+				new File( baseDir, "avgcorrected_quantile_aligned.tif" ) };
 
-		ci = createFinalImages( planes, baseDir, target, darkCountsTarget, mirrorTarget, true, true );
-		fs = new FileSaver( ci );
-		fs.saveAsTiffStack( new File( baseDir, "avgcorrected_quantile_aligned.tif" ).getAbsolutePath() );
-		ci.close();
+		final long memoryFinal = MemoryBudget.estimateFinal( new File( baseDir ), target );
+		budget.acquire( memoryFinal );
+		
+		try
+		{
+			createFinalImages( planes, baseDir, exportChannels, target, outputs );
+		}
+		finally
+		{
+			for ( final MicroscopyPlane plane : planes )
+				plane.setImage( null );
+			
+			budget.release( memoryFinal );
+		}
 	}
 	
 	/**
@@ -436,7 +738,7 @@ public class Align
 	 * @param maxSize - max size in byte
 	 * @return
 	 */
-	public static String findImageFile( final File baseDir, final String tag, final int minSize, final int maxSize )
+	public static String findImageFile( final File baseDir, final String tag, final long minSize, final long maxSize )
 	{
 		final String[] list = baseDir.list(
 				new FilenameFilter() 
@@ -502,29 +804,13 @@ public class Align
 		//allDirs.add( "/Volumes/TOSHIBA EXT/3D analysis files/2011-05-25/Dish 03/cell 06" );
 		//allDirs.add( root + experimentDir );
 		
-		for ( final String baseDir : allDirs )
-		{
-			System.out.println( "----------------|---------------" );
-			System.out.println( baseDir );
-			
-			try
-			{
-				alignAll( baseDir, model2d.copy() );
-			}
-			catch (Exception e)
-			{
-				System.err.println( "Failed on: " + baseDir );
-				e.printStackTrace();
-			}
-			
-			System.out.println( "done." );
-		}
-		
-		if ( outAllZ != null )
-			outAllZ.close();
+		// cells that are already in the journal as done are skipped, so a crashed run can just be restarted
+		final BatchAlign batch = new BatchAlign( allDirs, new File( root, AlignProperties.batchJournal ), AlignProperties.batchThreads, AlignProperties.batchMemoryBytes );
+		batch.run( model2d );
 		
-		if ( outAllXY != null )
-			outAllXY.close();
+		// combine the per-cell results
+		batch.mergeResults( AlignProperties.allZ, new File( root, "alloutZ.txt" ) );
+		batch.mergeResults( AlignProperties.allXY, new File( root, "alloutXY.txt" ) );
 		
 		System.out.println( "All done. exiting." );
 		
@@ -18,6 +18,13 @@
  */
 package run;
 
+import io.GratingGeometry;
+
+import java.util.ArrayList;
+
+import run.ChannelDescription.Role;
+import run.MicroscopyPlane.Mirroring;
+
 /**
  * Defines parameters for the alignment in XY and Z.
  * 
@@ -26,14 +33,75 @@ package run;
  */
 public class AlignProperties 
 {
-	public final static int numTiles = 9;
+	public static enum ZAlignment { GREEDY, GREEDY_LANCZOS, COARSE_TO_FINE, CROSS_CORRELATION };
+	public static enum XYEngine { DESCRIPTOR_PLUGIN, NATIVE };
+	
+	// how the mosaic is split into tiles (planes), the 3x3 grating by default
+	public static GratingGeometry grating = new GratingGeometry( 3, 3 );
+	
+	// the registration and export channels, dark count images are relative to the parent directory of the cell
+	public static ArrayList< ChannelDescription > channels = new ArrayList< ChannelDescription >();
+	
+	static
+	{
+		channels.add( new ChannelDescription( "2464" /*green*/, Mirroring.HORIZONTALLY, "Dark Counts/MED_avgstack_DNA_2464 green.tif" ) );
+		channels.add( new ChannelDescription( "4283" /*red*/, Mirroring.DONOT, "Dark Counts/MED_avgstack_DNA_4283 red.tif" ) );
+		
+		channels.add( new ChannelDescription( "2464" /*mRNA*/, Mirroring.HORIZONTALLY, "Dark Counts/MED_avgstack_mRNA_2464 green.tif", Role.EXPORT, 0, 200*1024*1024, 500*1024*1024 ) );
+		channels.add( new ChannelDescription( "4283" /*NPC*/, Mirroring.DONOT, "Dark Counts/MED_avgstack_NPC_4283 red.tif", Role.EXPORT, 1, 200*1024*1024, 500*1024*1024 ) );
+		channels.add( new ChannelDescription( "2464" /*DNA*/, Mirroring.HORIZONTALLY, "Dark Counts/MED_avgstack_DNA_2464 green.tif", Role.EXPORT_PROJECTION, 0, 5*1024*1024, 15*1024*1024 ) );
+	}
+	
 	public static double epsilon = 0.2;
 	public static double minInlierRatio = 0.5;
 	
+	// how the pairwise offsets of the entropy profiles are searched, GREEDY_LANCZOS is the same search as GREEDY on 
+	// the faster LanczosMatcher1D, its offsets can differ slightly
+	public static ZAlignment zAlignment = ZAlignment.GREEDY;
+	
+	// pairs whose normalized cross-correlation is below this value are not used (only for CROSS_CORRELATION)
+	public static double minZCorrelation = 0.5;
+	
+	// which implementation registers the avg-projections in xy, NATIVE works on the images directly and matches all pairs in parallel
+	public static XYEngine xyEngine = XYEngine.DESCRIPTOR_PLUGIN;
+	
+	// NATIVE only: estimate translations by phase correlation, pairs below this correlation (or other models) use the descriptors
+	public static boolean xyPhaseCorrelation = true;
+	public static float minXYCorrelation = 0.7f;
+	
+	// how many threads to use for the pairwise alignments
+	public static int numThreads = Runtime.getRuntime().availableProcessors();
+	
+	// how many bytes of decoded piezo slices to keep in memory when reading individual tiles
+	public static long piezoCacheBytes = 256 * 1024 * 1024;
+	
+	// how many cells to align at the same time in a batch, and how much memory they may use together
+	public static int batchThreads = 1;
+	public static long batchMemoryBytes = Runtime.getRuntime().maxMemory();
+	
+	// the journal of a batch run, and the per-cell files with all z-positions and xy-models
+	public static String batchJournal = "batch_journal.txt";
+	public static String allZ = "_allZ.txt";
+	public static String allXY = "_allXY.txt";
+	
+	// reuse the z-offsets and xy-models of a session (stored next to the dark counts) if the avg-projections still correlate,
+	// only the xy-models are validated, the z-offsets are reused unchecked, so it has to be enabled explicitly
+	public static boolean useCalibration = false;
+	public static double minCalibrationCorrelation = 0.8;
+	public static String calibration = "_calibration.bin";
+	
 	public static String tmpName = "tmp_";
-	public static String piezoStack = "_piezo.tif";
+	public static String piezoStack = "_piezo.bin";
 	public static String piezoProj = "_piezo_avg.tif";
-	public static String entropies = "_entropies.txt";
+	public static String entropies = "_entropies.bin";
+	
+	// histogram bins of the entropy and the radii of the bandpass applied to the power spectrum
+	public static int bins = 256;
+	public static int bandpassBegin = 0;
+	public static int bandpassEnd = 90;
+	
+	// compute the entropies without keeping the power spectra of a stack in memory (computes all ffts twice)
+	public static boolean streamEntropies = false;
 	
 	//public static double[] sigma = new double[]{ 0.75, 0.75, 4 };
 	public static double[] sigma = new double[]{ 0, 0, 1 };
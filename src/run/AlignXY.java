@@ -21,12 +21,14 @@ package run;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import io.PiezoStack;
 import io.TextFileAccess;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import loci.formats.FormatException;
 import mpicbg.imglib.image.Image;
@@ -37,10 +39,9 @@ import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.RigidModel2D;
 import plugin.DescriptorParameters;
-import plugin.Descriptor_based_series_registration;
-import process.AvgProjection3;
-import process.Matching;
+import process.DescriptorXYRegistration;
 import process.OverlayFusion;
+import run.AlignProperties.XYEngine;
 import run.MicroscopyPlane.Mirroring;
 
 /**
@@ -53,6 +54,9 @@ public class AlignXY
 {
 	final ArrayList< MicroscopyPlane > planes;
 	
+	// additionally writes the models of all planes here, can be null
+	final PrintWriter outAllXY;
+	
 	/**
 	 * Makes the max projections for all {@link MicroscopyPlane}s, alignes them and stores the transformation model in the
 	 * {@link MicroscopyPlane} object.
@@ -63,8 +67,17 @@ public class AlignXY
 	 * @throws IOException
 	 */
 	public AlignXY( final ArrayList< MicroscopyPlane > planes, final AbstractModel< ? > model ) throws FormatException, IOException
+	{
+		this( planes, model, null );
+	}
+	
+	/**
+	 * @param outAllXY - additionally writes the models of all planes here, can be null
+	 */
+	public AlignXY( final ArrayList< MicroscopyPlane > planes, final AbstractModel< ? > model, final PrintWriter outAllXY ) throws FormatException, IOException
 	{
 		this.planes = planes;
+		this.outAllXY = outAllXY;
 		
 		align( model );
 	}
@@ -72,21 +85,66 @@ public class AlignXY
 	public void align( final AbstractModel< ? > model ) throws FormatException, IOException
 	{
 		//
-		// extract a stack of z-avg-projections
+		// extract the z-avg-projections
 		//
-		ImageStack planeStack = null;
+		final ArrayList< Image< FloatType > > projections = new ArrayList< Image< FloatType > >();
+		
+		// the piezo stack of a channel is opened once and shared by all its planes, the projections are computed 
+		// slice by slice so that the tile stacks are never loaded as a whole
+		final HashMap< String, PiezoStack > stacks = new HashMap< String, PiezoStack >();
+		
 		for ( final MicroscopyPlane plane : planes )
 		{
-			final Image< FloatType > image = plane.getImagePiezo();
-			final Image< FloatType > planeImg = AvgProjection3.project( image );
+			final Image< FloatType > planeImg = MicroscopyPlane.getAvgProjPiezo( plane, stacks );
 			
-			// store the images
-			plane.setImage( image );
+			// store the projection
 			plane.setAvgProj( planeImg );
 			
+			projections.add( planeImg );
+		}
+		
+		stacks.clear();
+		
+		final XYRegistration registration;
+		
+		if ( AlignProperties.xyEngine == XYEngine.NATIVE )
+			registration = registerNative( projections, model );
+		else
+			registration = registerPlugin( projections, model );
+
+		// set the models
+		for ( int i = 0; i < planes.size(); ++i )
+			planes.get( i ).setXYModel( registration.getModel( i ) );
+		
+		PrintWriter out = TextFileAccess.openFileWrite( new File( planes.get( 0 ).baseDir, "_xyAlignment.txt" ) );
+		for ( int i = 0; i < planes.size(); ++i )
+		{
+			out.println( "Plane " + planes.get( i ).getFullName() + " <-\t" + planes.get( i ).getXYModel() );
+			
+			if ( outAllXY != null )
+				outAllXY.println( planes.get( i ).baseDir + "\t" + planes.get( i ).getFullName() + "\t" + planes.get( i ).getXYModel() );
+
+		}
+		if ( outAllXY != null )
+			outAllXY.flush();
+		
+		out.close();
+	}
+
+	/**
+	 * Registers the projections with the descriptor-based registration plugin, which needs them as an ImageJ timelapse.
+	 */
+	protected XYRegistration registerPlugin( final ArrayList< Image< FloatType > > projections, final AbstractModel< ? > model )
+	{
+		ImageStack planeStack = null;
+		
+		for ( int i = 0; i < projections.size(); ++i )
+		{
+			final Image< FloatType > planeImg = projections.get( i );
+			
 			if ( planeStack == null )
 				planeStack = new ImageStack( planeImg.getDimension( 0 ), planeImg.getDimension( 1 ) );
-			planeStack.addSlice( plane.getFullName(), ImageJFunctions.copyToImagePlus( planeImg ).getProcessor() );
+			planeStack.addSlice( planes.get( i ).getFullName(), ImageJFunctions.copyToImagePlus( planeImg ).getProcessor() );
 		}
 		
 		ImagePlus stack = new ImagePlus( "stack of avg proj", planeStack );
@@ -101,23 +159,44 @@ public class AlignXY
 		// compute the per-plane registration
 		// of NPC and mRNA
 		final DescriptorParameters params = getParametersForProjection( model );
-		Matching.descriptorBasedStackRegistration( stack, params );
-
-		// set the models
-		PrintWriter out = TextFileAccess.openFileWrite( new File( planes.get( 0 ).baseDir, "_xyAlignment.txt" ) );
-		for ( int i = 0; i < planes.size(); ++i )
+		
+		return XYRegistration.registerStack( stack, params );
+	}
+	
+	/**
+	 * Registers the projections directly with the {@link DescriptorXYRegistration}, using the same parameters. For a
+	 * TranslationModel2D most pairs are aligned by phase correlation.
+	 */
+	protected XYRegistration registerNative( final ArrayList< Image< FloatType > > projections, final AbstractModel< ? > model ) throws IOException
+	{
+		final DescriptorParameters params = getParametersForProjection( model );
+		final DescriptorXYRegistration registration = new DescriptorXYRegistration();
+		
+		registration.sigma1 = params.sigma1;
+		registration.sigma2 = params.sigma2;
+		registration.threshold = params.threshold;
+		registration.lookForMaxima = params.lookForMaxima;
+		registration.lookForMinima = params.lookForMinima;
+		registration.numNeighbors = params.numNeighbors;
+		registration.redundancy = params.redundancy;
+		registration.significance = params.significance;
+		registration.ransacThreshold = (float)params.ransacThreshold;
+		registration.phaseCorrelation = AlignProperties.xyPhaseCorrelation;
+		registration.minPhaseCorrelation = AlignProperties.minXYCorrelation;
+		registration.numThreads = AlignProperties.numThreads;
+		
+		try
 		{
-			planes.get( i ).setXYModel( Descriptor_based_series_registration.lastModels.get( i ) );
-			out.println( "Plane " + planes.get( i ).getFullName() + " <-\t" + Descriptor_based_series_registration.lastModels.get( i ) );
-			
-			if ( Align.outAllXY != null )
-				Align.outAllXY.println( planes.get( i ).baseDir + "\t" + planes.get( i ).getFullName() + "\t" + Descriptor_based_series_registration.lastModels.get( i ) );
-
+			return new XYRegistration( registration.register( projections, params.model ), -1 );
+		}
+		catch ( NotEnoughDataPointsException e )
+		{
+			throw new IOException( "XY registration failed: " + e );
+		}
+		catch ( IllDefinedDataPointsException e )
+		{
+			throw new IOException( "XY registration failed: " + e );
 		}
-		if ( Align.outAllXY != null )
-			Align.outAllXY.flush();
-		
-		out.close();
 	}
 
 	protected DescriptorParameters getParametersForProjection( final AbstractModel< ? > model )
@@ -184,7 +263,7 @@ public class AlignXY
 		final ArrayList< MicroscopyPlane > planes = new ArrayList< MicroscopyPlane >();
 		
 		for ( int c = 0; c < tags.length; ++c )
-			for ( int t = 0; t < AlignProperties.numTiles; ++t )
+			for ( int t = 0; t < AlignProperties.grating.getNumTiles(); ++t )
 				planes.add( new MicroscopyPlane( root + experimentDir, localDir, tags[ c ], darkCounts[ c ], mirror[ c ], t ) );
 
 		new AlignXY( planes, new RigidModel2D() );
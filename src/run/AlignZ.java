@@ -19,24 +19,20 @@
 package run;
 
 import ij.ImageJ;
-import ij.io.FileSaver;
-import io.ExtractPlane;
-import io.OpenPiezoStack;
+import io.PiezoStack;
 import io.TextFileAccess;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import loci.formats.FormatException;
 import mpicbg.imglib.algorithm.gauss.GaussianConvolutionReal;
-import mpicbg.imglib.container.array.ArrayContainerFactory;
 import mpicbg.imglib.image.Image;
-import mpicbg.imglib.image.display.imagej.ImageJFunctions;
-import mpicbg.imglib.io.LOCI;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.models.IllDefinedDataPointsException;
@@ -47,8 +43,11 @@ import mpicbg.models.TileConfiguration;
 import process.Alignment;
 import process.AutoFocus;
 import process.ComputeEntropy;
+import process.CorrelationMatcher1D;
 import process.CrossCorrelation;
-import process.Mirror;
+import process.LanczosMatcher1D;
+import process.PairwiseOffsets;
+import run.AlignProperties.ZAlignment;
 import run.MicroscopyPlane.Mirroring;
 
 /**
@@ -60,27 +59,73 @@ import run.MicroscopyPlane.Mirroring;
 public class AlignZ 
 {
 	final ArrayList< MicroscopyPlane > planes;
-	final HashMap< String, Image<FloatType> > allPiezoStacks = new HashMap<String, Image<FloatType>>();	
+	final HashMap< String, PiezoStack > piezoStacks = new HashMap< String, PiezoStack >();
+	final EntropyProfileCache entropyCache;
+	
+	// additionally writes the z-positions of all planes here, can be null
+	final PrintWriter outAllZ;
 	
 	public AlignZ( final ArrayList< MicroscopyPlane > planes ) throws FormatException, IOException, NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		this( planes, new EntropyProfileCache(), null );
+	}
+	
+	public AlignZ( final ArrayList< MicroscopyPlane > planes, final EntropyProfileCache entropyCache ) throws FormatException, IOException, NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		this( planes, entropyCache, null );
+	}
+	
+	public AlignZ( final ArrayList< MicroscopyPlane > planes, final EntropyProfileCache entropyCache, final PrintWriter outAllZ ) throws FormatException, IOException, NotEnoughDataPointsException, IllDefinedDataPointsException
 	//final String baseDir, final String[] names, final boolean[] mirror ) throws FormatException, IOException, NotEnoughDataPointsException, IllDefinedDataPointsException
 	{
 		//
 		// set up the planes
 		// 	
 		this.planes = planes;
+		this.entropyCache = entropyCache;
+		this.outAllZ = outAllZ;
+		
+		//
+		// Compute the entropy profile of every plane exactly once
+		//
+		final float[][] entropies = new float[ planes.size() ][];
+		
+		for ( int i = 0; i < planes.size(); ++i )
+			entropies[ i ] = computeEntropies( planes.get( i ) );
+		
+		// the piezo stacks and their decoded slices are not needed anymore
+		piezoStacks.clear();
+		
+		// save the entropy profiles that were computed
+		entropyCache.writeAll();
 		
 		//
 		// Compute all pairwise matches
-		//		
-		for ( final MicroscopyPlane planeA : planes )
+		//
+		final PairwiseOffsets pairwise = computeAllPairwiseAlignments( entropies, AlignProperties.numThreads );
+		final float[][] offsets = pairwise.offsets;
+		
+		for ( int a = 0; a < planes.size(); ++a )
 		{
+			final MicroscopyPlane planeA = planes.get( a );
+			
 			// get all corresponding plane offsets
-			for ( final MicroscopyPlane planeB : planes )
+			for ( int b = 0; b < planes.size(); ++b )
 			{
+				final MicroscopyPlane planeB = planes.get( b );
+				
 				if ( planeA != planeB )
 				{
-					final float offset = computePairwiseAlignment( planeA, planeB );
+					final float offset = offsets[ a ][ b ];
+					
+					// pairs that do not correlate well enough are not used
+					if ( pairwise.hasConfidences() && pairwise.confidences[ a ][ b ] < AlignProperties.minZCorrelation )
+					{
+						System.out.println( "skip " + planeA.getFullName() + " <-> " + planeB.getFullName() + ", correlation=" + pairwise.confidences[ a ][ b ] );
+						continue;
+					}
+					
+					writePairwiseLog( planeA, planeB, entropies[ a ], entropies[ b ], offset );
 					
 					// if it is from the same channel
 					if ( planeB.getTagName().equals( planeA.getTagName() ) )
@@ -129,7 +174,8 @@ public class AlignZ
 		final TileConfiguration tc = new TileConfiguration();
 		tc.addTiles( planes );
 
-		tc.fixTile( planes.get( 4 ) );
+		// the center tile of the first channel is the reference
+		tc.fixTile( planes.get( AlignProperties.grating.getCenterTile() ) );
 		
 		tc.optimize( 10, 1000, 200 );
 		
@@ -146,160 +192,142 @@ public class AlignZ
 			System.out.println( "Plane " + plane.getFullName() + " <-\t" + plane.getModel().tx );
 			out.println( "Plane " + plane.getFullName() + " <-\t" + plane.getModel().tx );
 			
-			if ( Align.outAllZ != null )
-				Align.outAllZ.println( planes.get( 0 ).getBaseDirectory() + "\t" + plane.getFullName() + "\t" + plane.tileNumber + "\t" + plane.getModel().tx );
+			if ( outAllZ != null )
+				outAllZ.println( planes.get( 0 ).getBaseDirectory() + "\t" + plane.getFullName() + "\t" + plane.tileNumber + "\t" + plane.getModel().tx );
 		}
 
-		if ( Align.outAllZ != null )
-			Align.outAllZ.flush();
+		if ( outAllZ != null )
+			outAllZ.flush();
 
 		out.close();
 	}
 	
 	public ArrayList< MicroscopyPlane > getPlanes() { return planes; }
 	
-	public float computePairwiseAlignment( final MicroscopyPlane refPlane, final MicroscopyPlane templatePlane ) throws FormatException, IOException
+	/**
+	 * Computes the offsets of all ordered pairs of entropy profiles. The pairs are distributed over a fixed number
+	 * of threads, the result only depends on the profiles and not on the order of execution. For
+	 * {@link ZAlignment#CROSS_CORRELATION} every profile is transformed once and the confidences are computed as well.
+	 * 
+	 * @param entropies - the entropy profile of each plane
+	 * @param numThreads - how many threads to use
+	 * @return - offsets[ a ][ b ] is the offset of template b relative to reference a (the diagonal is 0), confidences are null for the search based modes
+	 */
+	public static PairwiseOffsets computeAllPairwiseAlignments( final float[][] entropies, final int numThreads )
 	{
-		Image<FloatType> ref, template;
+		if ( AlignProperties.zAlignment == ZAlignment.CROSS_CORRELATION )
+			return CorrelationMatcher1D.alignAllPairs( entropies, numThreads );
 		
-		float[] entropiesReference, entropiesTemplate;
+		final int numPlanes = entropies.length;
+		final int numJobs = numPlanes * numPlanes;
+		final float[][] offsets = new float[ numPlanes ][ numPlanes ];
 		
-		final File refFile = new File( refPlane.getBaseDirectory(), AlignProperties.tmpName + refPlane.getFullName() + AlignProperties.piezoStack );
-		final File refEntropiesFile = new File( refPlane.getBaseDirectory(), AlignProperties.tmpName + refPlane.getFullName() + AlignProperties.entropies );
-		final File templateFile = new File( templatePlane.getBaseDirectory(), AlignProperties.tmpName + templatePlane.getFullName() + AlignProperties.piezoStack );
-		final File templateEntropiesFile = new File( templatePlane.getBaseDirectory(), AlignProperties.tmpName + templatePlane.getFullName() + AlignProperties.entropies );
-
-		// try to load the entropies
-		if ( !refEntropiesFile.exists() )
-		{
-			// try to load the raw dna stack per plane 
-			if ( refFile.exists() )
-			{
-				ref = LOCI.openLOCIFloatType( refFile.getAbsolutePath(), new ArrayContainerFactory() );
-			}
-			else
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numJobs ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
 			{
-				// do not open the huge image (containing 9 planes) for every new tile that we extract
-				if ( ( ref = allPiezoStacks.get( refPlane.getTagName() ) ) == null )
+				public void run()
 				{
-					ref = OpenPiezoStack.openPiezo( new File( refPlane.getBaseDirectory(), refPlane.getLocalDirectory() ), refPlane.getTagName() );
-
-					if ( MicroscopyPlane.subtractDarkCount( ref, refPlane.getDarkCountImageName() ) )
-						System.out.println( "SUBTRACTED darkcount image '" + refPlane.getDarkCountImageName() + "'" );
-					else
-						System.out.println( "NOT FOUND Darkcount image '" + refPlane.getDarkCountImageName() + "'" );
-					
-					if ( refPlane.getMirror() == Mirroring.HORIZONTALLY )
-						Mirror.horizontal( ref );
-
-					allPiezoStacks.put( refPlane.getTagName(), ref.clone() );
+					// every thread takes the next pair that is not processed yet
+					for ( int job = ai.getAndIncrement(); job < numJobs; job = ai.getAndIncrement() )
+					{
+						final int a = job / numPlanes;
+						final int b = job % numPlanes;
+						
+						if ( a != b )
+							offsets[ a ][ b ] = computePairwiseAlignment( entropies[ a ], entropies[ b ] );
+					}
 				}
-
-				ref = ExtractPlane.extract( ref, refPlane.getTileNumber() );
-								
-				// save the extracted stack
-				FileSaver fs = new FileSaver( ImageJFunctions.copyToImagePlus( ref ) );
-				fs.saveAsTiffStack( refFile.getAbsolutePath() );
-			}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		return new PairwiseOffsets( offsets, null );
+	}
+	
+	public static float computePairwiseAlignment( final float[] entropiesReference, final float[] entropiesTemplate )
+	{
+		PrintWriter out = null;//TextFileAccess.openFileWrite( new File( baseDir,"debug_z_registration_" + templateDir + "_" + templateIndex + "-onto-" + refDir + "_" + refIndex + ".txt" ) );
+		final float offset;
+		
+		if ( AlignProperties.zAlignment == ZAlignment.GREEDY_LANCZOS )
+			offset = new LanczosMatcher1D( entropiesReference, entropiesTemplate ).alignGreedy( 1.4, 0.1, out );
+		else if ( AlignProperties.zAlignment == ZAlignment.COARSE_TO_FINE )
+			offset = new LanczosMatcher1D( entropiesReference, entropiesTemplate ).alignCoarseToFine( 1.4, 0.1, out );
+		else if ( AlignProperties.zAlignment == ZAlignment.CROSS_CORRELATION )
+			offset = CorrelationMatcher1D.align( entropiesReference, entropiesTemplate ).offset;
+		else
+			offset = Alignment.align1d( entropiesReference, entropiesTemplate, 1.4, 0.1, out );
+		//out.close();
+		
+		return offset;
+	}
+	
+	/**
+	 * Returns the entropy profile of a plane from the {@link EntropyProfileCache}, otherwise computes it and puts
+	 * it into the cache.
+	 * 
+	 * @param plane - the {@link MicroscopyPlane}
+	 * @return - the normalized and median-filtered entropy for each slice of the piezo stack
+	 */
+	public float[] computeEntropies( final MicroscopyPlane plane ) throws FormatException, IOException
+	{
+		Image<FloatType> image;
+		
+		float[] entropies = entropyCache.get( plane );
+		
+		// compute the entropies if they are not known yet
+		if ( entropies == null )
+		{
+			// load the raw dna stack per plane, the piezo stack of a channel is only opened once and keeps the 
+			// decoded slices within AlignProperties.piezoCacheBytes, so only one tile stack is in memory at a time
+			image = MicroscopyPlane.getImagePiezo( plane, piezoStacks );
 			
 			if ( AlignProperties.sigma != null )
 			{
-				final GaussianConvolutionReal< FloatType > gauss = new GaussianConvolutionReal<FloatType>( ref, new OutOfBoundsStrategyMirrorFactory<FloatType>(), AlignProperties.sigma );
+				final GaussianConvolutionReal< FloatType > gauss = new GaussianConvolutionReal<FloatType>( image, new OutOfBoundsStrategyMirrorFactory<FloatType>(), AlignProperties.sigma );
 				gauss.process();
-				ref = gauss.getResult();
+				image = gauss.getResult();
 			}
 			
-			//ImageJFunctions.show( ref );
+			//ImageJFunctions.show( image );
 			
-			final Image< FloatType > focusStackReference = AutoFocus.focus( ref );
-			
-			//ImageJFunctions.show( focusStackReference );
-			//SimpleMultiThreading.threadHaltUnClean();
-			
-			entropiesReference = ComputeEntropy.computeEntropyForSlices( focusStackReference, 256 );
-
-			// normalize by avg and stdev
-			CrossCorrelation.normalize( entropiesReference );
-			
-			entropiesReference = CrossCorrelation.median3( entropiesReference );
-			
-			// save the entropies
-			final PrintWriter out = TextFileAccess.openFileWrite( refEntropiesFile );
-			out.println( "entries\t" + entropiesReference.length );
-			for ( final float e : entropiesReference )
-				out.println( e );
-			out.close();
-		}
-		else
-		{
-			// load entropies
-			entropiesReference = loadEntropies( refEntropiesFile );
-		}
-		
-		if ( !templateEntropiesFile.exists() )
-		{
-			if ( templateFile.exists() )
+			if ( AlignProperties.streamEntropies )
 			{
-				template = LOCI.openLOCIFloatType( templateFile.getAbsolutePath(), new ArrayContainerFactory() );
+				entropies = AutoFocus.focusEntropies( image, AlignProperties.bandpassBegin, AlignProperties.bandpassEnd, AlignProperties.bins );
 			}
 			else
 			{
-				if ( ( template = allPiezoStacks.get( templatePlane.getTagName() ) ) == null )
-				{
-					template = OpenPiezoStack.openPiezo( new File( templatePlane.getBaseDirectory(), templatePlane.getLocalDirectory() ), templatePlane.getTagName() );
-					
-					if ( MicroscopyPlane.subtractDarkCount( template, templatePlane.getDarkCountImageName() ) )
-						System.out.println( "SUBTRACTED darkcount image '" + templatePlane.getDarkCountImageName() + "'" );
-					else
-						System.out.println( "NOT FOUND Darkcount image '" + templatePlane.getDarkCountImageName() + "'" );
-					
-					if ( templatePlane.getMirror() == Mirroring.HORIZONTALLY )
-						Mirror.horizontal( template );
-					
-					allPiezoStacks.put( templatePlane.getTagName(), template.clone() );
-				}
-
-				template = ExtractPlane.extract( template, templatePlane.getTileNumber() );
+				final Image< FloatType > focusStack = AutoFocus.focus( image, AlignProperties.bandpassBegin, AlignProperties.bandpassEnd );
+				
+				//ImageJFunctions.show( focusStack );
+				//SimpleMultiThreading.threadHaltUnClean();
 				
-				// save the stack
-				FileSaver fs = new FileSaver( ImageJFunctions.copyToImagePlus( template ) );
-				fs.saveAsTiffStack( templateFile.getAbsolutePath() );
+				entropies = ComputeEntropy.computeEntropyForSlices( focusStack, AlignProperties.bins );
+				focusStack.close();
 			}
 
-			if ( AlignProperties.sigma != null )
-			{
-				final GaussianConvolutionReal< FloatType > gauss = new GaussianConvolutionReal<FloatType>( template, new OutOfBoundsStrategyMirrorFactory<FloatType>(), AlignProperties.sigma );
-				gauss.process();
-				template = gauss.getResult();
-			}
-			
-			final Image< FloatType > focusStackTemplate = AutoFocus.focus( template );
-			entropiesTemplate = ComputeEntropy.computeEntropyForSlices( focusStackTemplate, 256 );
-			
 			// normalize by avg and stdev
-			CrossCorrelation.normalize( entropiesTemplate );
-
-			entropiesTemplate = CrossCorrelation.median3( entropiesTemplate );
+			CrossCorrelation.normalize( entropies );
 			
-			// save the entropies
-			final PrintWriter out = TextFileAccess.openFileWrite( templateEntropiesFile );
-			out.println( "entries\t" + entropiesTemplate.length );
-			for ( final float e : entropiesTemplate )
-				out.println( e );
-			out.close();
+			entropies = CrossCorrelation.median3( entropies );
+			
+			// they are saved once all planes are computed
+			entropyCache.put( plane, entropies );
 		}
-		else
-		{
-			// load entries
-			entropiesTemplate = loadEntropies( templateEntropiesFile );
-		}		
-					
-		PrintWriter out = null;//TextFileAccess.openFileWrite( new File( baseDir,"debug_z_registration_" + templateDir + "_" + templateIndex + "-onto-" + refDir + "_" + refIndex + ".txt" ) );
-		final float offset = Alignment.align1d( entropiesReference, entropiesTemplate, 1.4, 0.1, out );
-		//out.close();
 		
+		return entropies;
+	}
+	
+	/**
+	 * Writes the result of one pairwise alignment into the log files of the reference plane.
+	 */
+	protected void writePairwiseLog( final MicroscopyPlane refPlane, final MicroscopyPlane templatePlane, final float[] entropiesReference, final float[] entropiesTemplate, final float offset )
+	{
 		//IJ.log( "offset [px]\t" + offset );
-		out = TextFileAccess.appendFileWrite( new File( refPlane.getBaseDirectory() ,"z_registration.txt" ) );
+		PrintWriter out = TextFileAccess.appendFileWrite( new File( refPlane.getBaseDirectory() ,"z_registration.txt" ) );
 		out.println( refPlane.getFullName() + "\t" + templatePlane.getFullName() + "\t" + offset );
 		out.close();
 		
@@ -314,23 +342,6 @@ public class AlignZ
 		for ( final FloatType t : alignedTemplate )
 			out.println( entropiesReference[ i ] + "\t" + entropiesTemplate[ i++ ] + "\t" + t );
 		out.close();
-		
-		
-		return offset;
-	}
-	
-	protected float[] loadEntropies( final File file ) throws IOException
-	{
-		final BufferedReader in = TextFileAccess.openFileRead( file );
-		
-		final int numEntries = Integer.parseInt( in.readLine().split( "\t" )[ 1 ] );
-		final float[] entropies = new float[ numEntries ];
-		
-		int i = 0;
-		while ( in.ready() )
-			entropies[ i++ ] = Float.parseFloat( in.readLine() );
-		
-		return entropies;
 	}
 	
 	protected int findMax( final float[] values )
@@ -371,7 +382,7 @@ public class AlignZ
 		final ArrayList< MicroscopyPlane > planes = new ArrayList< MicroscopyPlane >();
 		
 		for ( int c = 0; c < tags.length; ++c )
-			for ( int t = 0; t < AlignProperties.numTiles; ++t )
+			for ( int t = 0; t < AlignProperties.grating.getNumTiles(); ++t )
 				planes.add( new MicroscopyPlane( root + experimentDir, localDir, tags[ c ], darkCounts[ c ], mirror[ c ], t ) );
 		
 		new AlignZ( planes );
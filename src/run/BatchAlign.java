@@ -0,0 +1,234 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package run;
+
+import io.TextFileAccess;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.models.AbstractModel;
+
+/**
+ * Aligns many cells using a fixed number of worker threads. All cells share one {@link MemoryBudget}, every stage of
+ * a cell only starts if its estimated memory fits into the budget. The status of every cell is appended to a journal, cells that are marked as
+ * done in the journal are skipped, so an interrupted batch can simply be restarted.
+ * 
+ * Every cell writes its z-positions and xy-models into its own files ({@link AlignProperties#allZ}, {@link AlignProperties#allXY}),
+ * they can be combined with {@link #mergeResults(String, File)}.
+ * 
+ * @author preibischs
+ *
+ */
+public class BatchAlign 
+{
+	final public static String STARTED = "STARTED";
+	final public static String DONE = "DONE";
+	final public static String FAILED = "FAILED";
+	
+	final List< String > cells;
+	final File journal;
+	final int numWorkers;
+	final MemoryBudget budget;
+	
+	/**
+	 * @param cells - the directories of all cells
+	 * @param journal - the journal file, it is created if it does not exist
+	 * @param numWorkers - how many cells to align at the same time
+	 * @param memoryBudget - how much memory all running cells may use together
+	 */
+	public BatchAlign( final List< String > cells, final File journal, final int numWorkers, final long memoryBudget )
+	{
+		this.cells = cells;
+		this.journal = journal;
+		this.numWorkers = Math.max( 1, numWorkers );
+		this.budget = new MemoryBudget( memoryBudget );
+	}
+	
+	/**
+	 * Aligns all cells that are not done yet.
+	 * 
+	 * @param model2d - the model for the XY alignment, it is copied for every cell
+	 */
+	public void run( final AbstractModel< ? > model2d )
+	{
+		final HashMap< String, String > status = readJournal( journal );
+		final ArrayList< String > todo = new ArrayList< String >();
+		
+		for ( final String cell : cells )
+		{
+			if ( DONE.equals( status.get( cell ) ) )
+				System.out.println( "Skipping '" + cell + "', it is already done." );
+			else
+				todo.add( cell );
+		}
+		
+		System.out.println( "Aligning " + todo.size() + " of " + cells.size() + " cells using " + numWorkers + " workers." );
+		
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numWorkers, todo.size() ) ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < todo.size(); i = ai.getAndIncrement() )
+						alignCell( todo.get( i ), model2d.copy() );
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+	
+	/**
+	 * Aligns one cell, the result is written to the journal.
+	 * 
+	 * @return - true if it was successful
+	 */
+	protected boolean alignCell( final String cell, final AbstractModel< ? > model2d )
+	{
+		PrintWriter outZ = null;
+		PrintWriter outXY = null;
+		
+		try
+		{
+			log( STARTED, cell, "" );
+			
+			outZ = TextFileAccess.openFileWrite( new File( cell, AlignProperties.allZ ) );
+			outXY = TextFileAccess.openFileWrite( new File( cell, AlignProperties.allXY ) );
+			
+			Align.alignAll( cell, model2d, outZ, outXY, budget );
+			
+			log( DONE, cell, "" );
+			
+			return true;
+		}
+		catch ( Throwable e )
+		{
+			System.err.println( "Failed on: " + cell );
+			e.printStackTrace();
+			
+			log( FAILED, cell, String.valueOf( e ) );
+			
+			return false;
+		}
+		finally
+		{
+			if ( outZ != null )
+				outZ.close();
+			if ( outXY != null )
+				outXY.close();
+		}
+	}
+	
+	/**
+	 * Appends a line (status, cell, date, message) to the journal.
+	 */
+	protected synchronized void log( final String status, final String cell, final String message )
+	{
+		System.out.println( status + ": " + cell + " " + message );
+		
+		try
+		{
+			final PrintWriter out = new PrintWriter( new FileWriter( journal, true ) );
+			out.println( status + "\t" + cell + "\t" + new Date() + "\t" + message.replace( '\n', ' ' ).replace( '\t', ' ' ) );
+			out.close();
+		}
+		catch ( IOException e )
+		{
+			System.out.println( "Cannot write to journal '" + journal + "': " + e );
+		}
+	}
+	
+	/**
+	 * @return - the last status of every cell in the journal
+	 */
+	public static HashMap< String, String > readJournal( final File journal )
+	{
+		final HashMap< String, String > status = new HashMap< String, String >();
+		
+		if ( !journal.exists() )
+			return status;
+		
+		final BufferedReader in = TextFileAccess.openFileRead( journal );
+		
+		if ( in == null )
+			return status;
+		
+		try
+		{
+			String line;
+			
+			while ( ( line = in.readLine() ) != null )
+			{
+				final String[] entries = line.split( "\t" );
+				
+				if ( entries.length >= 2 )
+					status.put( entries[ 1 ], entries[ 0 ] );
+			}
+			
+			in.close();
+		}
+		catch ( IOException e )
+		{
+			System.out.println( "Cannot read journal '" + journal + "': " + e );
+		}
+		
+		return status;
+	}
+	
+	/**
+	 * Concatenates the per-cell result files of all cells in the order of the cells.
+	 * 
+	 * @param name - the name of the per-cell file, e.g. {@link AlignProperties#allZ}
+	 * @param output - the combined file
+	 */
+	public void mergeResults( final String name, final File output ) throws IOException
+	{
+		final PrintWriter out = TextFileAccess.openFileWrite( output );
+		
+		for ( final String cell : cells )
+		{
+			final File file = new File( cell, name );
+			
+			if ( !file.exists() )
+				continue;
+			
+			final BufferedReader in = TextFileAccess.openFileRead( file );
+			
+			String line;
+			while ( ( line = in.readLine() ) != null )
+				out.println( line );
+			
+			in.close();
+		}
+		
+		out.close();
+	}
+}
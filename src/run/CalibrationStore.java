@@ -0,0 +1,293 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package run;
+
+import io.FloatCacheFile;
+import io.PiezoStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import loci.formats.FormatException;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.interpolation.linear.LinearInterpolatorFactory;
+import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AbstractModel;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.InvertibleBoundable;
+import process.AvgProjection3;
+import process.CrossCorrelation;
+import process.OverlayFusion;
+
+/**
+ * Stores the z-offsets and xy-models of all {@link MicroscopyPlane}s of one instrument session, so that cells of the
+ * same session can reuse them instead of aligning again. The calibration is saved as a {@link FloatCacheFile} next to 
+ * the dark count images of the session, its parameter hash identifies the session (dark count images, channels, 
+ * mirroring, grating geometry and the xy-model).
+ * 
+ * Before a stored calibration is used for a new cell it is validated: all avg-projections are transformed with the
+ * stored xy-models and have to correlate with the transformed projection of the first plane. The z-offsets cannot be
+ * validated this way and are reused as they are, which is why {@link AlignProperties#useCalibration} is off by default.
+ * 
+ * @author preibischs
+ *
+ */
+public class CalibrationStore 
+{
+	// the cells of a batch may read and write the same calibration at the same time
+	final static Object lock = new Object();
+	
+	// per plane: z-offset and the affine 2d-matrix m00, m10, m01, m11, m02, m12
+	final static int valuesPerPlane = 7;
+	
+	final File file;
+	final long parameterHash;
+	
+	/**
+	 * @param planes - the planes of a cell
+	 * @param model2d - the model used for the xy alignment
+	 */
+	public CalibrationStore( final ArrayList< MicroscopyPlane > planes, final AbstractModel< ? > model2d )
+	{
+		this.file = getFile( planes.get( 0 ) );
+		this.parameterHash = getParameterHash( planes, model2d );
+	}
+	
+	/**
+	 * @return - the calibration file of the session the plane belongs to (the directory of its dark count image, 
+	 * otherwise the parent directory of the cell)
+	 */
+	public static File getFile( final MicroscopyPlane plane )
+	{
+		final String darkCount = plane.getDarkCountImageName();
+		final File dir;
+		
+		if ( darkCount != null && new File( darkCount ).exists() )
+			dir = new File( darkCount ).getAbsoluteFile().getParentFile();
+		else
+			dir = new File( plane.getBaseDirectory() ).getAbsoluteFile().getParentFile();
+		
+		return new File( dir, AlignProperties.calibration );
+	}
+	
+	/**
+	 * @return - the hash of everything that identifies the session and the alignment
+	 */
+	public static long getParameterHash( final ArrayList< MicroscopyPlane > planes, final AbstractModel< ? > model2d )
+	{
+		final ArrayList< Object > parameters = new ArrayList< Object >();
+		
+		parameters.add( planes.size() );
+		parameters.add( AlignProperties.grating );
+		parameters.add( model2d == null ? null : model2d.getClass().getName() );
+		
+		for ( final MicroscopyPlane plane : planes )
+		{
+			parameters.add( plane.getLocalDirectory() );
+			parameters.add( plane.getTagName() );
+			parameters.add( plane.getTileNumber() );
+			parameters.add( plane.getMirror() );
+			
+			final String darkCount = plane.getDarkCountImageName();
+			
+			if ( darkCount != null && new File( darkCount ).exists() )
+			{
+				final File f = new File( darkCount ).getAbsoluteFile();
+				parameters.add( f.getPath() );
+				parameters.add( f.length() );
+				parameters.add( f.lastModified() );
+			}
+			else
+			{
+				parameters.add( null );
+			}
+		}
+		
+		return FloatCacheFile.hash( parameters.toArray() );
+	}
+	
+	public File getFile() { return file; }
+	
+	/**
+	 * Saves the z-offsets and xy-models of the planes as the calibration of the session.
+	 */
+	public void write( final ArrayList< MicroscopyPlane > planes ) throws IOException
+	{
+		final float[] data = new float[ planes.size() * valuesPerPlane ];
+		final float[] matrix = new float[ 6 ];
+		
+		for ( int i = 0; i < planes.size(); ++i )
+		{
+			final MicroscopyPlane plane = planes.get( i );
+			final InvertibleBoundable model = plane.getXYModel();
+			
+			if ( !( model instanceof AbstractAffineModel2D ) )
+			{
+				System.out.println( "Cannot store the xy-model of " + plane.getFullName() + " (" + model + "), calibration not saved." );
+				return;
+			}
+			
+			( (AbstractAffineModel2D<?>)model ).toArray( matrix );
+			
+			data[ i * valuesPerPlane ] = plane.getModel().tx;
+			System.arraycopy( matrix, 0, data, i * valuesPerPlane + 1, 6 );
+		}
+		
+		synchronized ( lock )
+		{
+			FloatCacheFile.write( file, new int[]{ valuesPerPlane, planes.size() }, data, parameterHash );
+		}
+		
+		System.out.println( "Saved calibration to '" + file + "'" );
+	}
+	
+	/**
+	 * Sets the z-offsets and xy-models of the planes from the stored calibration if it exists and passes the
+	 * validation, see {@link #validate(ArrayList, double)}. The xy-models are restored as {@link AffineModel2D}.
+	 * 
+	 * @param planes - the planes, loads their avg-projections
+	 * @param minCorrelation - the minimal correlation of every transformed projection with the first one
+	 * @return - true if the calibration was applied, otherwise the planes are unchanged
+	 */
+	public boolean apply( final ArrayList< MicroscopyPlane > planes, final double minCorrelation ) throws IOException, FormatException
+	{
+		final FloatCacheFile cache;
+		
+		synchronized ( lock )
+		{
+			cache = FloatCacheFile.read( file, parameterHash );
+		}
+		
+		if ( cache == null || cache.getDimensions()[ 1 ] != planes.size() )
+		{
+			System.out.println( "No calibration found in '" + file + "'" );
+			return false;
+		}
+		
+		final float[] data = cache.getData();
+		final float[] tx = new float[ planes.size() ];
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		
+		for ( int i = 0; i < planes.size(); ++i )
+		{
+			final int o = i * valuesPerPlane;
+			final AffineModel2D model = new AffineModel2D();
+			model.set( data[ o + 1 ], data[ o + 2 ], data[ o + 3 ], data[ o + 4 ], data[ o + 5 ], data[ o + 6 ] );
+			
+			tx[ i ] = data[ o ];
+			models.add( model );
+		}
+		
+		// compute the missing avg-projections, the piezo stack of every channel is opened once and all of its tiles
+		// are projected in one pass, the tile stacks are neither loaded nor cached as they are not needed if the 
+		// calibration is valid
+		final HashMap< String, PiezoStack > stacks = new HashMap< String, PiezoStack >();
+		final HashMap< PiezoStack, ArrayList< MicroscopyPlane > > missing = new HashMap< PiezoStack, ArrayList< MicroscopyPlane > >();
+		
+		for ( final MicroscopyPlane plane : planes )
+		{
+			if ( plane.getAvgProj() != null )
+				continue;
+			
+			final PiezoStack stack = MicroscopyPlane.openPiezoStack( plane, stacks );
+			
+			if ( !missing.containsKey( stack ) )
+				missing.put( stack, new ArrayList< MicroscopyPlane >() );
+			
+			missing.get( stack ).add( plane );
+		}
+		
+		for ( final PiezoStack stack : missing.keySet() )
+		{
+			final ArrayList< MicroscopyPlane > channelPlanes = missing.get( stack );
+			final int[] tiles = new int[ channelPlanes.size() ];
+			
+			for ( int i = 0; i < tiles.length; ++i )
+				tiles[ i ] = channelPlanes.get( i ).getTileNumber();
+			
+			final Image< FloatType >[] projections = AvgProjection3.project( stack, tiles );
+			
+			for ( int i = 0; i < tiles.length; ++i )
+				channelPlanes.get( i ).setAvgProj( projections[ i ] );
+		}
+		
+		stacks.clear();
+		missing.clear();
+		
+		final double correlation = validate( planes, models );
+		
+		if ( correlation < minCorrelation )
+		{
+			System.out.println( "Calibration '" + file + "' does not match (correlation=" + correlation + " < " + minCorrelation + "), aligning again." );
+			return false;
+		}
+		
+		System.out.println( "Using calibration '" + file + "' (correlation=" + correlation + ")" );
+		
+		for ( int i = 0; i < planes.size(); ++i )
+		{
+			planes.get( i ).getModel().tx = tx[ i ];
+			planes.get( i ).setXYModel( models.get( i ) );
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Transforms the avg-projections of all planes with the models and correlates them with the first one.
+	 * 
+	 * @return - the lowest correlation
+	 */
+	public static double validate( final ArrayList< MicroscopyPlane > planes, final ArrayList< InvertibleBoundable > models )
+	{
+		Image< FloatType > reference = null;
+		double minCorrelation = 1;
+		
+		for ( int i = 0; i < planes.size(); ++i )
+		{
+			final Image< FloatType > proj = planes.get( i ).getAvgProj();
+			final Image< FloatType > transformed = proj.clone();
+			
+			OverlayFusion.fuseChannel( transformed, proj, new float[ proj.getNumDimensions() ], models.get( i ), new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
+			
+			if ( reference == null )
+			{
+				reference = transformed;
+			}
+			else
+			{
+				final double r = CrossCorrelation.corrlate( reference, transformed );
+				
+				System.out.println( "Calibration " + planes.get( i ).getFullName() + ": r=" + r );
+				
+				minCorrelation = Math.min( minCorrelation, r );
+				transformed.close();
+			}
+		}
+		
+		if ( reference != null )
+			reference.close();
+		
+		return minCorrelation;
+	}
+}
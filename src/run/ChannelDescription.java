@@ -0,0 +1,137 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package run;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import run.MicroscopyPlane.Mirroring;
+
+/**
+ * Describes one channel of an MFM experiment: the tag that selects its files, whether it has to be mirrored, its dark
+ * count image and its role. Registration channels are the piezo stacks (DNA stacks) the planes are aligned with, export
+ * channels are the acquisitions that are aligned with the models of one registration channel and written to the final
+ * images.
+ * 
+ * @author preibischs
+ *
+ */
+public class ChannelDescription 
+{
+	/**
+	 * REGISTRATION - piezo stack used for the Z and XY alignment;
+	 * EXPORT - intensity corrected and normalized timeseries in the final images;
+	 * EXPORT_PROJECTION - only the avg projection is written to every timepoint of the final images
+	 */
+	public static enum Role { REGISTRATION, EXPORT, EXPORT_PROJECTION };
+	
+	final String tag;
+	final Mirroring mirror;
+	final String darkCount;
+	final Role role;
+	
+	// only for export channels: which registration channel provides the models, and the file size range of the image
+	final int registrationChannel;
+	final long minFileSize, maxFileSize;
+	
+	/**
+	 * A registration channel.
+	 * 
+	 * @param tag - the part of the filename that selects the channel (e.g. 2464)
+	 * @param mirror - mirror the image or not
+	 * @param darkCount - the dark count image relative to the parent directory of the cell, can be null
+	 */
+	public ChannelDescription( final String tag, final Mirroring mirror, final String darkCount )
+	{
+		this( tag, mirror, darkCount, Role.REGISTRATION, -1, 0, Long.MAX_VALUE );
+	}
+	
+	/**
+	 * @param tag - the part of the filename that selects the channel (e.g. 2464)
+	 * @param mirror - mirror the image or not
+	 * @param darkCount - the dark count image relative to the parent directory of the cell, can be null
+	 * @param role - what the channel is used for
+	 * @param registrationChannel - for export channels the index of the registration channel whose models are applied
+	 * @param minFileSize - for export channels the minimal size of the image file in bytes
+	 * @param maxFileSize - for export channels the maximal size of the image file in bytes
+	 */
+	public ChannelDescription( final String tag, final Mirroring mirror, final String darkCount, final Role role, final int registrationChannel, final long minFileSize, final long maxFileSize )
+	{
+		this.tag = tag;
+		this.mirror = mirror;
+		this.darkCount = darkCount;
+		this.role = role;
+		this.registrationChannel = registrationChannel;
+		this.minFileSize = minFileSize;
+		this.maxFileSize = maxFileSize;
+	}
+	
+	public String getTag() { return tag; }
+	public Mirroring getMirror() { return mirror; }
+	public Role getRole() { return role; }
+	public int getRegistrationChannel() { return registrationChannel; }
+	public long getMinFileSize() { return minFileSize; }
+	public long getMaxFileSize() { return maxFileSize; }
+	
+	/**
+	 * @param baseDir - the directory of the cell
+	 * @return - the full path of the dark count image for this cell or null
+	 */
+	public String getDarkCount( final String baseDir )
+	{
+		if ( darkCount == null )
+			return null;
+		else
+			return baseDir + File.separator + ".." + File.separator + darkCount;
+	}
+	
+	/**
+	 * @return - all channels with that role, in their order
+	 */
+	public static ArrayList< ChannelDescription > getChannels( final ArrayList< ChannelDescription > channels, final Role role )
+	{
+		final ArrayList< ChannelDescription > result = new ArrayList< ChannelDescription >();
+		
+		for ( final ChannelDescription channel : channels )
+			if ( channel.getRole() == role )
+				result.add( channel );
+		
+		return result;
+	}
+	
+	/**
+	 * @return - all export channels, i.e. EXPORT and EXPORT_PROJECTION
+	 */
+	public static ArrayList< ChannelDescription > getExportChannels( final ArrayList< ChannelDescription > channels )
+	{
+		final ArrayList< ChannelDescription > result = new ArrayList< ChannelDescription >();
+		
+		for ( final ChannelDescription channel : channels )
+			if ( channel.getRole() != Role.REGISTRATION )
+				result.add( channel );
+		
+		return result;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return tag + " (" + role + ", " + mirror + ")";
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package run;
+
+import io.FloatCacheFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * In-memory cache of the entropy profiles of {@link MicroscopyPlane}s. Profiles are identified by the name
+ * of the plane and the parameters they were computed with, newly computed profiles are only written to disk
+ * when {@link #writeAll()} is called.
+ *
+ * @author preibischs
+ *
+ */
+public class EntropyProfileCache
+{
+	final HashMap< String, float[] > profiles = new HashMap< String, float[] >();
+
+	// profiles that were computed but not saved yet
+	final HashMap< String, MicroscopyPlane > unsaved = new HashMap< String, MicroscopyPlane >();
+
+	/**
+	 * @param plane - the {@link MicroscopyPlane}
+	 * @return - the key of the plane for the current parameters in {@link AlignProperties}
+	 */
+	public static String getKey( final MicroscopyPlane plane )
+	{
+		return getKey( plane, AlignProperties.sigma, AlignProperties.bins, AlignProperties.bandpassBegin, AlignProperties.bandpassEnd );
+	}
+
+	public static String getKey( final MicroscopyPlane plane, final double[] sigma, final int bins, final int bandpassBegin, final int bandpassEnd )
+	{
+		return plane.getBaseDirectory() + File.separator + plane.getFullName() + "_sigma=" + Arrays.toString( sigma ) + "_bins=" + bins + "_bandpass=" + bandpassBegin + "-" + bandpassEnd + "_piezo=" + MicroscopyPlane.getPiezoParameterHash( plane );
+	}
+
+	/**
+	 * @param plane - the {@link MicroscopyPlane}
+	 * @return - the hash of the parameters that influence the entropy profile of the plane, i.e. everything that 
+	 * influences its piezo stack (grating geometry, dark counts, mirroring, see 
+	 * {@link MicroscopyPlane#getPiezoParameterHash(MicroscopyPlane)}) and the entropy parameters. Cache files computed 
+	 * with different parameters are ignored
+	 */
+	public static long getParameterHash( final MicroscopyPlane plane )
+	{
+		return FloatCacheFile.hash( AlignProperties.sigma, AlignProperties.bins, AlignProperties.bandpassBegin, AlignProperties.bandpassEnd, MicroscopyPlane.getPiezoParameterHash( plane ) );
+	}
+
+	/**
+	 * @param plane - the {@link MicroscopyPlane}
+	 * @return - the file the entropy profile of this plane is saved to
+	 */
+	public static File getFile( final MicroscopyPlane plane )
+	{
+		return new File( plane.getBaseDirectory(), AlignProperties.tmpName + plane.getFullName() + AlignProperties.entropies );
+	}
+
+	/**
+	 * Returns the profile for the current parameters if it is in memory, otherwise tries to load it from disk. Files
+	 * that were computed with other parameters are ignored.
+	 *
+	 * @param plane - the {@link MicroscopyPlane}
+	 * @return - the entropy profile or null if it has to be computed
+	 */
+	public synchronized float[] get( final MicroscopyPlane plane ) throws IOException
+	{
+		final String key = getKey( plane );
+		float[] entropies = profiles.get( key );
+
+		if ( entropies == null )
+		{
+			entropies = load( getFile( plane ), getParameterHash( plane ) );
+
+			if ( entropies != null )
+				profiles.put( key, entropies );
+		}
+
+		return entropies;
+	}
+
+	/**
+	 * Stores a newly computed profile, it will be written to disk by {@link #writeAll()}.
+	 *
+	 * @param plane - the {@link MicroscopyPlane}
+	 * @param entropies - the entropy profile
+	 */
+	public synchronized void put( final MicroscopyPlane plane, final float[] entropies )
+	{
+		final String key = getKey( plane );
+
+		profiles.put( key, entropies );
+		unsaved.put( key, plane );
+	}
+
+	/**
+	 * Writes all profiles to disk that were computed since the last call.
+	 */
+	public synchronized void writeAll() throws IOException
+	{
+		final ArrayList< String > keys = new ArrayList< String >( unsaved.keySet() );
+
+		for ( final String key : keys )
+		{
+			final MicroscopyPlane plane = unsaved.get( key );
+
+			save( getFile( plane ), profiles.get( key ), getParameterHash( plane ) );
+			unsaved.remove( key );
+		}
+	}
+
+	public synchronized void clear()
+	{
+		profiles.clear();
+		unsaved.clear();
+	}
+
+	public static float[] load( final File file, final long parameterHash ) throws IOException
+	{
+		final FloatCacheFile cache = FloatCacheFile.read( file, parameterHash );
+
+		if ( cache == null )
+			return null;
+		else
+			return cache.getData();
+	}
+
+	public static void save( final File file, final float[] entropies, final long parameterHash ) throws IOException
+	{
+		FloatCacheFile.write( file, new int[]{ entropies.length }, entropies, parameterHash );
+	}
+}
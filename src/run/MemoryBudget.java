@@ -0,0 +1,169 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package run;
+
+import io.PiezoStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import loci.formats.FormatException;
+import loci.formats.ImageReader;
+
+/**
+ * Admission control for the memory used by the stages of the alignment. Every stage estimates its footprint from
+ * the dimensions of the images it will load (without loading them) and waits until it fits into the budget. A
+ * stage is always admitted if nothing else is running, so a single stage larger than the budget still runs.
+ * 
+ * @author preibischs
+ *
+ */
+public class MemoryBudget 
+{
+	final long budget;
+	long inUse = 0;
+	
+	/**
+	 * @param budget - how many bytes all admitted stages may use together
+	 */
+	public MemoryBudget( final long budget )
+	{
+		this.budget = budget;
+	}
+	
+	public long getBudget() { return budget; }
+	public synchronized long getInUse() { return inUse; }
+	
+	/**
+	 * Waits until the bytes fit into the budget and reserves them.
+	 */
+	public synchronized void acquire( final long bytes ) throws InterruptedException
+	{
+		while ( inUse > 0 && inUse + bytes > budget )
+			wait();
+		
+		inUse += bytes;
+	}
+	
+	public synchronized void release( final long bytes )
+	{
+		inUse -= bytes;
+		notifyAll();
+	}
+	
+	/**
+	 * The Z alignment keeps the decoded slices of one channel up to {@link AlignProperties#piezoCacheBytes}, and 
+	 * needs the stack of the current tile, a smoothed copy and the power spectra.
+	 * 
+	 * @return - the estimated peak memory of the Z alignment in bytes
+	 */
+	public static long estimateZ( final ArrayList< MicroscopyPlane > planes ) throws FormatException, IOException
+	{
+		long max = 0;
+		
+		for ( final long mosaic : getPiezoBytesPerChannel( planes ).values() )
+			max = Math.max( max, Math.min( AlignProperties.piezoCacheBytes, mosaic ) + 3 * mosaic / AlignProperties.grating.getNumTiles() );
+		
+		return max;
+	}
+	
+	/**
+	 * The XY alignment keeps the decoded slices of every channel up to {@link AlignProperties#piezoCacheBytes} and 
+	 * loads at most one cached tile stack at a time, the projections are small.
+	 * 
+	 * @return - the estimated peak memory of the XY alignment in bytes
+	 */
+	public static long estimateXY( final ArrayList< MicroscopyPlane > planes ) throws FormatException, IOException
+	{
+		long sum = 0, maxTile = 0;
+		
+		for ( final long mosaic : getPiezoBytesPerChannel( planes ).values() )
+		{
+			sum += Math.min( AlignProperties.piezoCacheBytes, mosaic );
+			maxTile = Math.max( maxTile, mosaic / AlignProperties.grating.getNumTiles() );
+		}
+		
+		return sum + maxTile;
+	}
+	
+	/**
+	 * The creation of the final images keeps the target images and all of their tiles while extracting, and all 
+	 * tiles plus their fused destinations while fusing.
+	 * 
+	 * @return - the estimated peak memory of writing the aligned images in bytes
+	 */
+	public static long estimateFinal( final File baseDir, final String[] targets ) throws FormatException, IOException
+	{
+		long sum = 0;
+		
+		for ( final String target : targets )
+		{
+			if ( target == null )
+				continue;
+			
+			final long bytes = getImageBytes( new File( baseDir, target ) );
+			
+			sum += 2 * bytes;
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * @return - the size of the piezo mosaic of every channel (tag) as 32-bit image
+	 */
+	public static HashMap< String, Long > getPiezoBytesPerChannel( final ArrayList< MicroscopyPlane > planes ) throws FormatException, IOException
+	{
+		final HashMap< String, Long > bytes = new HashMap< String, Long >();
+		
+		for ( final MicroscopyPlane plane : planes )
+		{
+			if ( bytes.containsKey( plane.getTagName() ) )
+				continue;
+			
+			// only reads the list of files and the dimensions of the first one
+			final PiezoStack stack = new PiezoStack( new File( plane.getBaseDirectory(), plane.getLocalDirectory() ), plane.getTagName(), null, false, AlignProperties.grating, 0 );
+			
+			bytes.put( plane.getTagName(), 4L * stack.getWidth() * stack.getHeight() * stack.getNumSlices() );
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * @return - the size of the image as 32-bit image, read from the metadata
+	 */
+	public static long getImageBytes( final File file ) throws FormatException, IOException
+	{
+		final ImageReader reader = new ImageReader();
+		
+		try
+		{
+			reader.setId( file.getAbsolutePath() );
+			
+			return 4L * reader.getSizeX() * reader.getSizeY() * reader.getImageCount();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+}
@@ -18,28 +18,26 @@
  */
 package run;
 
-import ij.io.FileSaver;
-import io.ExtractPlane;
-import io.OpenPiezoStack;
+import io.FloatCacheFile;
+import io.PiezoStack;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import loci.formats.FormatException;
 import mpicbg.imglib.container.array.ArrayContainerFactory;
 import mpicbg.imglib.cursor.Cursor;
 import mpicbg.imglib.image.Image;
-import mpicbg.imglib.image.display.imagej.ImageJFunctions;
 import mpicbg.imglib.io.LOCI;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.imglib.util.Util;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.Tile;
-import process.Mirror;
-import fit.Line;
-import fit.LinkedPoint;
-import fit.PointFunctionMatch;
+import process.Alignment;
+import process.AvgProjection3;
+import fit.LineRansac;
 import fit.TranslationModel1D;
 
 /**
@@ -76,7 +74,7 @@ public class MicroscopyPlane extends Tile< TranslationModel1D >
 	 * @param dirname - the directory that contains all the individual slices of the piezo DNA stack
 	 * @param tag - if multiple channels are in the directory a String that selects for the current channel (e.g. green)
 	 * @param mirror - mirror the image or not
-	 * @param tileNumber - which of the tiles to load (0...8)
+	 * @param tileNumber - which of the tiles to load (0...numTiles-1, see {@link AlignProperties#grating})
 	 */
 	public MicroscopyPlane( final String baseDir, final String dirname, final String tag, final String darkCountImageName, final Mirroring mirror, final int tileNumber )
 	{
@@ -116,46 +114,39 @@ public class MicroscopyPlane extends Tile< TranslationModel1D >
 	
 	public static int removeOutliers( final ArrayList< PlaneOffset > offsets, final double epsilon, final double minInlierRatio )
 	{
-		final ArrayList< PointFunctionMatch > candidates = new ArrayList<PointFunctionMatch>();
-		final ArrayList< PointFunctionMatch > inliers = new ArrayList<PointFunctionMatch>();
+		final int numPoints = offsets.size();
+		final double[] x = new double[ numPoints ];
+		final double[] y = new double[ numPoints ];
 		
-		for ( final PlaneOffset p : offsets )
-			candidates.add( new PointFunctionMatch( new LinkedPoint<PlaneOffset>( new float[]{ p.plane.getTileNumber(), p.offset }, p )));//new PointFunctionMatch( p ) );
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			x[ i ] = offsets.get( i ).plane.getTileNumber();
+			y[ i ] = offsets.get( i ).offset;
+		}
 		
-		int numRemoved = 0;
+		final LineRansac l = new LineRansac();
 		
-		try 
+		if ( l.ransac( x, y, numPoints, 100, epsilon, minInlierRatio ) == 0 || !l.fit( x, y, numPoints, l.getInliers() ) )
 		{
-			final Line l = new Line();
-			
-			l.ransac( candidates, inliers, 100, epsilon, minInlierRatio );
-			numRemoved = candidates.size() - inliers.size();
-			
-			
-			l.fit( inliers );
-			
-			System.out.println( "y = " + l.getM() + " x + " + l.getN() );
-			
+			System.out.println( "No line found for " + numPoints + " offsets, removing all." );
 			offsets.clear();
-			
-			for ( final PointFunctionMatch p : inliers )
-			{
-				final LinkedPoint< ? > lp = (LinkedPoint< ? >)p.getP1();
-				offsets.add( (PlaneOffset)lp.getLinkedObject() );
-			}
-			
-			//for ( final PointFunctionMatch p : inliers )
-			//	System.out.println( l.distanceTo( p.getP1() ) );
-
-		} 
-		catch (Exception e) 
-		{
-			e.printStackTrace();
-			numRemoved = offsets.size();
-			offsets.clear();
-		} 
+			return numPoints;
+		}
+		
+		System.out.println( "y = " + l.getM() + " x + " + l.getN() );
+		
+		// keep the inliers in their order
+		final boolean[] inliers = l.getInliers();
+		int j = 0;
+		
+		for ( int i = 0; i < numPoints; ++i )
+			if ( inliers[ i ] )
+				offsets.set( j++, offsets.get( i ) );
 		
-		return numRemoved;
+		while ( offsets.size() > j )
+			offsets.remove( offsets.size() - 1 );
+		
+		return numPoints - j;
 	}
 	
 	@Override
@@ -170,39 +161,144 @@ public class MicroscopyPlane extends Tile< TranslationModel1D >
 	}
 	
 	public static Image<FloatType> getImagePiezo( final MicroscopyPlane plane ) throws FormatException, IOException
+	{
+		return getImagePiezo( plane, new HashMap< String, PiezoStack >() );
+	}
+	
+	/**
+	 * Loads the cached stack of the plane, otherwise extracts it from the {@link PiezoStack} of its channel and
+	 * caches it.
+	 * 
+	 * @param plane - the {@link MicroscopyPlane}
+	 * @param stacks - the piezo stacks that are shared by all planes of a channel, see {@link #openPiezoStack(MicroscopyPlane, HashMap)}
+	 * @return - the stack of the tile of this plane
+	 */
+	public static Image<FloatType> getImagePiezo( final MicroscopyPlane plane, final HashMap< String, PiezoStack > stacks ) throws FormatException, IOException
 	{	
-		Image<FloatType> image;
-		
-		final File file = new File( plane.getBaseDirectory(), AlignProperties.tmpName + plane.getFullName() + AlignProperties.piezoStack );
-				
 		// load or create the 3d-stack
-		if ( file.exists() )
-		{
-			image = LOCI.openLOCIFloatType( file.getAbsolutePath(), new ArrayContainerFactory() );
-		}
-		else
+		Image<FloatType> image = loadPiezoCache( plane );
+		
+		if ( image == null )
 		{
-			image = OpenPiezoStack.openPiezo( new File( plane.getBaseDirectory(), plane.getLocalDirectory() ), plane.getTagName() );
-			
-			if ( subtractDarkCount( image, plane.getDarkCountImageName() ) )
-				System.out.println( "SUBTRACTED darkcount image '" + plane.getDarkCountImageName() + "'" );
-			else
-				System.out.println( "NOT FOUND Darkcount image '" + plane.getDarkCountImageName() + "'" );
-			
-			if ( plane.getMirror() == Mirroring.HORIZONTALLY )
-				Mirror.horizontal( image );
-			
-			image = ExtractPlane.extract( image, plane.getTileNumber() );
+			// only read the tile we need from the piezo stack
+			image = openPiezoStack( plane, stacks ).getTile( plane.getTileNumber() );
 			
 			// save the extracted stack
-			FileSaver fs = new FileSaver( ImageJFunctions.copyToImagePlus( image ) );
-			fs.saveAsTiffStack( file.getAbsolutePath() );
+			savePiezoCache( plane, image );
 		}
 		
-		// load or create the average-projection
 		return image;
 	}
 	
+	/**
+	 * Computes the average projection of the plane from its cached stack if there is one, otherwise slice by slice
+	 * from the {@link PiezoStack} of its channel. The tile stack is never kept and nothing is written to the cache.
+	 * 
+	 * @param plane - the {@link MicroscopyPlane}
+	 * @param stacks - the piezo stacks that are shared by all planes of a channel, see {@link #openPiezoStack(MicroscopyPlane, HashMap)}
+	 * @return - the average projection of the tile of this plane
+	 */
+	public static Image<FloatType> getAvgProjPiezo( final MicroscopyPlane plane, final HashMap< String, PiezoStack > stacks ) throws FormatException, IOException
+	{
+		final Image<FloatType> image = loadPiezoCache( plane );
+		
+		if ( image == null )
+			return AvgProjection3.project( openPiezoStack( plane, stacks ), plane.getTileNumber() );
+		
+		final Image<FloatType> projection = AvgProjection3.project( image );
+		image.close();
+		
+		return projection;
+	}
+	
+	/**
+	 * @param plane - the {@link MicroscopyPlane} that defines directory, channel, dark counts and mirroring
+	 * @return - lazy access to the piezo stack of the channel of this plane 
+	 */
+	public static PiezoStack openPiezoStack( final MicroscopyPlane plane ) throws FormatException, IOException
+	{
+		return new PiezoStack( new File( plane.getBaseDirectory(), plane.getLocalDirectory() ), plane.getTagName(), openDarkCount( plane ), plane.getMirror() == Mirroring.HORIZONTALLY, AlignProperties.grating, AlignProperties.piezoCacheBytes );
+	}
+	
+	/**
+	 * Returns the {@link PiezoStack} of the channel of this plane, it is only opened once so that all planes of the
+	 * channel share its cache of decoded slices (and the dark count image).
+	 * 
+	 * @param plane - the {@link MicroscopyPlane} that defines directory, channel, dark counts and mirroring
+	 * @param stacks - the piezo stacks that were opened already, by directory and channel
+	 * @return - lazy access to the piezo stack of the channel of this plane
+	 */
+	public static PiezoStack openPiezoStack( final MicroscopyPlane plane, final HashMap< String, PiezoStack > stacks ) throws FormatException, IOException
+	{
+		final String key = new File( plane.getLocalDirectory(), plane.getTagName() ).getPath();
+		
+		PiezoStack stack = stacks.get( key );
+		
+		if ( stack == null )
+		{
+			stack = openPiezoStack( plane );
+			stacks.put( key, stack );
+		}
+		
+		return stack;
+	}
+	
+	/**
+	 * @return - the dark count image of the plane or null if there is none
+	 */
+	public static Image<FloatType> openDarkCount( final MicroscopyPlane plane )
+	{
+		final String darkCountFileName = plane.getDarkCountImageName();
+		
+		if ( darkCountFileName != null && new File( darkCountFileName ).exists() )
+		{
+			System.out.println( "Loading darkcount image '" + darkCountFileName + "'" );
+			return LOCI.openLOCIFloatType( new File( darkCountFileName ).getAbsolutePath(), new ArrayContainerFactory() );
+		}
+		else
+		{
+			System.out.println( "NOT FOUND Darkcount image '" + darkCountFileName + "'" );
+			return null;
+		}
+	}
+	
+	/**
+	 * @return - the file that caches the extracted piezo stack of the plane
+	 */
+	public static File getPiezoCacheFile( final MicroscopyPlane plane )
+	{
+		return new File( plane.getBaseDirectory(), AlignProperties.tmpName + plane.getFullName() + AlignProperties.piezoStack );
+	}
+	
+	/**
+	 * @return - the hash of everything that influences the extracted piezo stack of the plane
+	 */
+	public static long getPiezoParameterHash( final MicroscopyPlane plane )
+	{
+		final String darkCount = plane.getDarkCountImageName();
+		final boolean darkCountExists = darkCount != null && new File( darkCount ).exists();
+		
+		return FloatCacheFile.hash( plane.getLocalDirectory(), plane.getTagName(), plane.getTileNumber(), plane.getMirror(), darkCount, darkCountExists, AlignProperties.grating );
+	}
+	
+	/**
+	 * @return - the cached piezo stack of the plane or null if there is none that matches the current parameters
+	 */
+	public static Image<FloatType> loadPiezoCache( final MicroscopyPlane plane ) throws IOException
+	{
+		final FloatCacheFile cache = FloatCacheFile.read( getPiezoCacheFile( plane ), getPiezoParameterHash( plane ) );
+		
+		if ( cache == null )
+			return null;
+		else
+			return Alignment.createImageFromArray( cache.getData(), cache.getDimensions() );
+	}
+	
+	public static void savePiezoCache( final MicroscopyPlane plane, final Image<FloatType> image ) throws IOException
+	{
+		FloatCacheFile.write( getPiezoCacheFile( plane ), image.getDimensions(), Alignment.getArray( image ), getPiezoParameterHash( plane ) );
+	}
+	
 	public static boolean subtractDarkCount( final Image< FloatType > image, final String darkCountFileName )
 	{
 		if ( darkCountFileName != null && new File( darkCountFileName ).exists() )
@@ -39,15 +39,14 @@ import mpicbg.imglib.io.LOCI;
 import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
 import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.RigidModel2D;
 import plugin.DescriptorParameters;
-import plugin.Descriptor_based_registration;
 import process.Alignment;
 import process.AutoFocus;
 import process.AvgProjection3;
 import process.ComputeEntropy;
 import process.CrossCorrelation;
-import process.Matching;
 import process.Mirror;
 import process.OverlayFusion;
 import run.MicroscopyPlane.Mirroring;
@@ -110,9 +109,9 @@ public class Start
 			if ( refFile.exists() )
 				ref = LOCI.openLOCIFloatType( refFile.getAbsolutePath(), new ArrayContainerFactory() );
 			else
-				ref = ExtractPlane.extract( OpenPiezoStack.openPiezo( new File( referencePlane.getBaseDirectory(), referencePlane.getLocalDirectory() ), referencePlane.getTagName() ), referencePlane.getTileNumber() );
+				ref = ExtractPlane.extract( OpenPiezoStack.openPiezo( new File( referencePlane.getBaseDirectory(), referencePlane.getLocalDirectory() ), referencePlane.getTagName() ), referencePlane.getTileNumber(), AlignProperties.grating );
 			
-			template = ExtractPlane.extract( OpenPiezoStack.openPiezo( new File( templatePlane.getBaseDirectory(), templatePlane.getLocalDirectory() ), templatePlane.getTagName() ), templatePlane.getTileNumber() );
+			template = ExtractPlane.extract( OpenPiezoStack.openPiezo( new File( templatePlane.getBaseDirectory(), templatePlane.getLocalDirectory() ), templatePlane.getTagName() ), templatePlane.getTileNumber(), AlignProperties.grating );
 	
 			//
 			// TODO: This is wrong and mixes up the order! It should be mirrored first and then extracted
@@ -142,7 +141,9 @@ public class Start
 			// compute the per-plane registration
 			// of NPC and mRNA
 			final DescriptorParameters params = getParametersForProjection();
-			final int numInliers = Matching.descriptorBasedRegistration( ImageJFunctions.copyToImagePlus( templateProjection ), ImageJFunctions.copyToImagePlus( refProjection ), params );
+			final XYRegistration registration = XYRegistration.registerPair( ImageJFunctions.copyToImagePlus( templateProjection ), ImageJFunctions.copyToImagePlus( refProjection ), params );
+			final int numInliers = registration.getNumInliers();
+			final InvertibleBoundable model = registration.getModel( 0 );
 			
 			if ( numInliers < minNumInliers )
 			{
@@ -160,8 +161,8 @@ public class Start
 			final float r1 = CrossCorrelation.corrlate( ref, template );
 
 			// re-arrange the mRNA channel
-			OverlayFusion.fuseChannel( templateProjection, templateProjection.clone(), new float[ templateProjection.getNumDimensions() ], Descriptor_based_registration.lastModel1, new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
-			OverlayFusion.fuseChannel( template, template.clone(), new float[ template.getNumDimensions() ], Descriptor_based_registration.lastModel1, new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
+			OverlayFusion.fuseChannel( templateProjection, templateProjection.clone(), new float[ templateProjection.getNumDimensions() ], model, new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
+			OverlayFusion.fuseChannel( template, template.clone(), new float[ template.getNumDimensions() ], model, new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() ) );
 
 			// compute cross-correlation
 			final float r2 = CrossCorrelation.corrlate( ref, template );
@@ -170,7 +171,7 @@ public class Start
 			IJ.log( "num inliers:\t" + numInliers );
 			IJ.log( "cross correlation before alignment:\t" + r1 );
 			IJ.log( "cross correlation after alignment:\t" + r2 );
-			IJ.log( "model mapping template (" + templatePlane + ") onto reference (" + referencePlane + "):\t" + Descriptor_based_registration.lastModel1 );
+			IJ.log( "model mapping template (" + templatePlane + ") onto reference (" + referencePlane + "):\t" + model );
 
 			// write a small log file
 			PrintWriter out = TextFileAccess.openFileWrite( new File( referencePlane.getBaseDirectory(),"log_image_registration_" + templatePlane + "-onto-" + referencePlane + ".txt" ) );
@@ -178,7 +179,7 @@ public class Start
 			out.println( "num inliers:\t" + numInliers );
 			out.println( "cross correlation before alignment:\t" + r1 );
 			out.println( "cross correlation after alignment:\t" + r2 );
-			out.println( "model mapping template (" + templatePlane + ") onto reference (" + referencePlane + "):\t" + Descriptor_based_registration.lastModel1 );
+			out.println( "model mapping template (" + templatePlane + ") onto reference (" + referencePlane + "):\t" + model );
 			
 			out.close();
 
@@ -327,7 +328,7 @@ public class Start
 	public static void main( String[] args ) throws FormatException, IOException
 	{
 		new ImageJ();
-		final int referencePlaneIndex = 4;
+		final int referencePlaneIndex = AlignProperties.grating.getCenterTile();
 		
 		final String baseDir = "/home/stephanpreibisch/Desktop/stephan/";
 		final String experimentDir = "1 (20110525, dish 2, cell 22)";
@@ -345,7 +346,7 @@ public class Start
 
 		final MicroscopyPlane referencePlane = new MicroscopyPlane( new File( baseDir, experimentDir ).getAbsolutePath(), refChannelDir, refChannelTag, refChannelDarkCount, Mirroring.DONOT, referencePlaneIndex );
 
-		for ( int plane = 0; plane < 9; ++plane )
+		for ( int plane = 0; plane < AlignProperties.grating.getNumTiles(); ++plane )
 		{
 			if ( plane != referencePlaneIndex )
 			{
@@ -354,7 +355,7 @@ public class Start
 			}
 		}
 		
-		for ( int plane = 0; plane < 9; ++plane )
+		for ( int plane = 0; plane < AlignProperties.grating.getNumTiles(); ++plane )
 		{
 			final MicroscopyPlane templatePlane = new MicroscopyPlane( new File( baseDir, experimentDir ).getAbsolutePath(), templateChannelDir, templateChannelTag, templateChannelDarkCount, Mirroring.HORIZONTALLY, plane );	
 			new Start( referencePlane, templatePlane );
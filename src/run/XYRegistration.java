@@ -0,0 +1,126 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * @author: Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+package run;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.InvertibleBoundable;
+import plugin.DescriptorParameters;
+import plugin.Descriptor_based_registration;
+import plugin.Descriptor_based_series_registration;
+import process.Matching;
+
+/**
+ * The result of one descriptor-based registration: copies of the models and the number of inliers. The
+ * descriptor-based registration only reports its models through static fields of the plugins, this class is the only
+ * place that reads them. It runs the registration and copies the models while holding a global lock, so several
+ * registrations (e.g. of different cells) can be started from different threads at the same time.
+ * 
+ * @author preibischs
+ *
+ */
+public class XYRegistration 
+{
+	// guards the static result fields of the plugins
+	final static Object lock = new Object();
+	
+	final ArrayList< InvertibleBoundable > models;
+	final int numInliers;
+	
+	public XYRegistration( final ArrayList< InvertibleBoundable > models, final int numInliers )
+	{
+		this.models = models;
+		this.numInliers = numInliers;
+	}
+	
+	/**
+	 * @return - the models, one per registered image
+	 */
+	public ArrayList< InvertibleBoundable > getModels() { return models; }
+	
+	/**
+	 * @return - the model of image i, null if the registration failed
+	 */
+	public InvertibleBoundable getModel( final int i ) { return i < models.size() ? models.get( i ) : null; }
+	
+	/**
+	 * @return - the number of inliers (only for pairwise registrations, otherwise -1)
+	 */
+	public int getNumInliers() { return numInliers; }
+	
+	/**
+	 * Registers all timepoints of a stack, see {@link Matching#descriptorBasedStackRegistration(ImagePlus, DescriptorParameters)}.
+	 * 
+	 * @return - the models of all timepoints
+	 */
+	public static XYRegistration registerStack( final ImagePlus stack, final DescriptorParameters params )
+	{
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		
+		synchronized ( lock )
+		{
+			Descriptor_based_series_registration.lastModels = null;
+			
+			Matching.descriptorBasedStackRegistration( stack, params );
+			
+			if ( Descriptor_based_series_registration.lastModels != null )
+				for ( final InvertibleBoundable model : Descriptor_based_series_registration.lastModels )
+					models.add( copy( model ) );
+			
+			Descriptor_based_series_registration.lastModels = null;
+		}
+		
+		return new XYRegistration( models, -1 );
+	}
+	
+	/**
+	 * Registers the template onto the reference, see {@link Matching#descriptorBasedRegistration(ImagePlus, ImagePlus, DescriptorParameters)}.
+	 * 
+	 * @return - the model mapping the template onto the reference
+	 */
+	public static XYRegistration registerPair( final ImagePlus template, final ImagePlus reference, final DescriptorParameters params )
+	{
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		final int numInliers;
+		
+		synchronized ( lock )
+		{
+			Descriptor_based_registration.lastModel1 = null;
+			
+			numInliers = Matching.descriptorBasedRegistration( template, reference, params );
+			
+			models.add( copy( Descriptor_based_registration.lastModel1 ) );
+			
+			Descriptor_based_registration.lastModel1 = null;
+		}
+		
+		return new XYRegistration( models, numInliers );
+	}
+	
+	protected static InvertibleBoundable copy( final InvertibleBoundable model )
+	{
+		if ( model instanceof AbstractAffineModel2D )
+			return (InvertibleBoundable)((AbstractAffineModel2D<?>)model).copy();
+		else
+			return model;
+	}
+}